@@ -0,0 +1,72 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * latency of a single write as the producer sees it, with each page synced when it is complete,
+ * the synchronous stream pays for the rollovers and syncs in the tail, the async stream only
+ * when its ring is full because the writer thread doesn't keep up
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncWriteBenchmark {
+
+	@Param({"64", "1024"})
+	int chunkSize;
+
+	@Param({"false", "true"})
+	boolean async;
+
+	private File cacheDir;
+	private IWriteStream writer;
+	private ByteBuffer chunk;
+	private long timestamp;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(AsyncWriteBenchmark.class);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(4 * 1024 * 1024);
+		buffer.setFlushPolicy(FlushPolicy.onPageClose());
+		buffer.setCapacityPolicy(CapacityPolicy.dropOldest(4, 0));
+		if (async) {
+			buffer.setAsyncWrites(64 * 1024, chunkSize);
+		}
+		writer = buffer.getWriteStream(0);
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		writer.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public void write() {
+		chunk.clear();
+		writer.write(timestamp++, chunk);
+	}
+
+}
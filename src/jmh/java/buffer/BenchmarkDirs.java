@@ -0,0 +1,28 @@
+package buffer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * cache dirs for the benchmarks, put java.io.tmpdir on the disk you want to measure
+ */
+class BenchmarkDirs {
+
+	static File create(Class<?> benchmark) throws IOException {
+		File dir = File.createTempFile(benchmark.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
+
+	static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,55 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * cost of the chunk checksum alone, the JDK version the JIT turns into the CPU instruction
+ * against the plain java fallback older versions use
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Crc32cBenchmark {
+
+	@Param({"64", "1024", "16384"})
+	int chunkSize;
+
+	private ByteBuffer chunk;
+
+
+	@Setup
+	public void setup() {
+		byte[] bytes = new byte[chunkSize];
+		new Random(1).nextBytes(bytes);
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+		chunk.put(bytes).flip();
+	}
+
+	@Benchmark
+	public int intrinsic() {
+		return Crc32c.checksum(chunk, 0, chunkSize);
+	}
+
+	@Benchmark
+	public int java() {
+		return Crc32c.checksumJava(chunk, 0, chunkSize);
+	}
+
+}
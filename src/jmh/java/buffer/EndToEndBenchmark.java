@@ -0,0 +1,121 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * writer to reader latency, the benchmark thread writes a chunk and spins until a reader
+ * thread has read it, so this includes waking up the reader with the wait strategy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	@Param({"busySpin", "yielding", "parking", "blocking"})
+	String waitStrategy;
+
+	private File cacheDir;
+	private IWriteStream writer;
+	private ReaderThread reader;
+	private final ByteBuffer chunk = ByteBuffer.allocateDirect(64);
+	private long sequence;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(EndToEndBenchmark.class);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(16 * 1024 * 1024);
+		buffer.setFlushPolicy(FlushPolicy.never());
+		buffer.setWaitStrategy(waitStrategy(waitStrategy));
+		writer = buffer.getWriteStream(0);
+		reader = new ReaderThread(buffer.getReadStream(0));
+		reader.start();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		// an empty sequence stops the reader
+		writer.write(sequence, ByteBuffer.allocate(1));
+		reader.join();
+		writer.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public long writeToRead() {
+		sequence++;
+		chunk.clear();
+		chunk.putLong(0, sequence);
+		writer.write(sequence, chunk);
+		while (reader.lastRead.get() != sequence) {
+			// spin, the reader is on another core
+		}
+		return sequence;
+	}
+
+	private static WaitStrategy waitStrategy(String name) {
+		switch (name) {
+		case "busySpin":
+			return new BusySpinWaitStrategy();
+		case "yielding":
+			return new YieldingWaitStrategy();
+		case "parking":
+			return new ParkingWaitStrategy();
+		case "blocking":
+			return new BlockingWaitStrategy();
+		default:
+			throw new IllegalArgumentException(name);
+		}
+	}
+
+	static class ReaderThread extends Thread {
+
+		final AtomicLong lastRead = new AtomicLong();
+		private final IReadStream stream;
+
+		ReaderThread(IReadStream stream) {
+			this.stream = stream;
+			setName("BenchmarkReader");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					ByteBuffer chunk = stream.read();
+					if (chunk.remaining() < 8) {
+						break;
+					}
+					lastRead.set(chunk.getLong(chunk.position()));
+				}
+				stream.close();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+
+	}
+
+}
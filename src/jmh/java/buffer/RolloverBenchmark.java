@@ -0,0 +1,70 @@
+package buffer;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * cost of a page rollover in the write page factory, with and without the page pool,
+ * the pool only helps as long as its thread keeps up with one rollover per call
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RolloverBenchmark {
+
+	@Param({"1048576", "67108864"})
+	int pageSize;
+
+	@Param({"0", "4"})
+	int poolSize;
+
+	private File cacheDir;
+	private WritePageFactory factory;
+	private WritePage page;
+	private long timestamp;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(RolloverBenchmark.class);
+		factory = new WritePageFactory();
+		factory.setCacheDir(cacheDir);
+		factory.setPageSize(pageSize);
+		factory.setPagePoolSize(poolSize);
+		factory.setFlushPolicy(FlushPolicy.never());
+		factory.setCapacityPolicy(CapacityPolicy.dropOldest(4, 0));
+		factory.initialize();
+		page = factory.create(timestamp);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		page.close();
+		factory.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public WritePage rollover() {
+		WritePage next = factory.create(++timestamp);
+		page.close();
+		return page = next;
+	}
+
+}
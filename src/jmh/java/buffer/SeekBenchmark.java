@@ -0,0 +1,70 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * time to find the page for a timestamp depending on the number of pages,
+ * one chunk per page and page i starts at timestamp i * 10
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeekBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	int pageCount;
+
+	private File cacheDir;
+	private IWriteStream writer;
+	private ReadPageFactory readPageFactory;
+	private long timestamp;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(SeekBenchmark.class);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		buffer.setFlushPolicy(FlushPolicy.never());
+		writer = buffer.getWriteStream(0);
+		for (int i = 0; i < pageCount; i++) {
+			writer.write(i * 10, ByteBuffer.allocate(4));
+		}
+		readPageFactory = buffer.readPageFactory;
+		readPageFactory.initialize();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		readPageFactory.close();
+		writer.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public ReadPage findPageBefore() {
+		// walks over all pages, never past the start of the last one
+		timestamp = (timestamp + 7919) % (pageCount * 10L - 9);
+		return readPageFactory.findPageBefore(timestamp);
+	}
+
+}
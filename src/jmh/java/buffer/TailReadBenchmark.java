@@ -0,0 +1,74 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * latency percentiles of a reader that follows the writer closely, every read finds exactly
+ * the chunk that was just published, so this is the cost of the read path and of moving to
+ * the next page including the reclaim of the page it left, but not of waiting
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TailReadBenchmark {
+
+	@Param({"64", "1024"})
+	int chunkSize;
+
+	// written with checksums and verified by the reader
+	@Param({"false", "true"})
+	boolean checksums;
+
+	private File cacheDir;
+	private IWriteStream writer;
+	private IReadStream reader;
+	private ByteBuffer chunk;
+	private long timestamp;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(TailReadBenchmark.class);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(16 * 1024 * 1024);
+		buffer.setFlushPolicy(FlushPolicy.never());
+		buffer.setChecksums(checksums);
+		writer = buffer.getWriteStream(0);
+		reader = buffer.getReadStream(0);
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		reader.close();
+		writer.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public ByteBuffer writeAndRead() throws Exception {
+		chunk.clear();
+		writer.write(timestamp++, chunk);
+		return reader.read();
+	}
+
+}
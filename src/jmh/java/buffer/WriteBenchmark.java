@@ -0,0 +1,73 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * write throughput without readers, the oldest pages are dropped so the disk doesn't fill up,
+ * nothing is synced so this measures the copy into the mapped pages and the rollovers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+	@Param({"64", "1024", "16384"})
+	int chunkSize;
+
+	@Param({"false", "true"})
+	boolean chunkTimestamps;
+
+	@Param({"false", "true"})
+	boolean checksums;
+
+	private File cacheDir;
+	private IWriteStream writer;
+	private ByteBuffer chunk;
+	private long timestamp;
+
+
+	@Setup
+	public void setup() throws Exception {
+		cacheDir = BenchmarkDirs.create(WriteBenchmark.class);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(64 * 1024 * 1024);
+		buffer.setFlushPolicy(FlushPolicy.never());
+		buffer.setChunkTimestamps(chunkTimestamps);
+		buffer.setChecksums(checksums);
+		buffer.setCapacityPolicy(CapacityPolicy.dropOldest(4, 0));
+		writer = buffer.getWriteStream(0);
+		chunk = ByteBuffer.allocateDirect(chunkSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		writer.close();
+		BenchmarkDirs.delete(cacheDir);
+	}
+
+	@Benchmark
+	public void write() {
+		chunk.clear();
+		writer.write(timestamp++, chunk);
+	}
+
+}
@@ -0,0 +1,354 @@
+package buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * producers copy their chunks into a preallocated ring and return, a writer thread drains the ring
+ * in batches into the write stream, so page faults, rollovers and syncs only stall that thread,
+ * every chunk gets a sequence number, awaitWritten() blocks till the chunk is visible to readers,
+ * a chunk bigger than a ring slot is copied into a buffer of its own
+ */
+public class AsyncWriteStream implements IWriteStream {
+
+	// the writer thread spins this often on an empty ring before it parks
+	private static final int SPIN_TRIES = 1000;
+	private static final long MAX_PARK_NANOS = 1000000L;  // 1ms
+	private static final int MAX_BATCH = 256;
+
+	private final IWriteStream target;
+	private final boolean multiProducer;
+
+	private final int mask;
+	private final long[] timestamps;
+	private final ByteBuffer[] slots;
+	// the slot or the copy of a chunk that didn't fit into it
+	private final ByteBuffer[] chunks;
+	// the sequence that was last published in each slot
+	private final AtomicLongArray published;
+
+	// next sequence to claim and the last sequence the writer thread wrote
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong written = new AtomicLong(-1);
+
+	// flush() asks the writer thread to flush after this sequence
+	private final AtomicLong flushRequest = new AtomicLong(-1);
+	private volatile long flushed = -1;
+
+	private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+	private final Drainer drainer = new Drainer();
+
+	// producers between checkOpen() and the publish of their chunk, close() waits for them
+	// so the writer thread doesn't stop in front of a claimed sequence
+	private final AtomicInteger producers = new AtomicInteger();
+
+	private volatile CacheException failure;
+	private volatile boolean closed;
+
+
+	// the ring size is rounded up to a power of two
+	AsyncWriteStream(IWriteStream target, int ringSize, int slotSize, boolean multiProducer) {
+		if (ringSize <= 0 || slotSize <= 0) {
+			throw new CacheException("invalid ring: " + ringSize + " slots of " + slotSize + " bytes");
+		}
+		int capacity = Integer.highestOneBit(ringSize);
+		if (capacity < ringSize) {
+			capacity <<= 1;
+		}
+		this.target = target;
+		this.multiProducer = multiProducer;
+		this.mask = capacity - 1;
+		this.timestamps = new long[capacity];
+		this.slots = new ByteBuffer[capacity];
+		this.chunks = new ByteBuffer[capacity];
+		this.published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = ByteBuffer.allocate(slotSize);
+			published.set(i, -1);
+		}
+	}
+
+	AsyncWriteStream start() {
+		drainer.start();
+		return this;
+	}
+
+	@Override
+	public void write(long timestamp, ByteBuffer buffer) {
+		writeAsync(timestamp, buffer);
+	}
+
+	// copies the chunk into the ring and returns its sequence number,
+	// blocks only while the ring is full
+	public long writeAsync(long timestamp, ByteBuffer buffer) {
+		producers.incrementAndGet();
+		try {
+			checkOpen();
+			long sequence = claim();
+			awaitRoom(sequence);
+			int index = (int) sequence & mask;
+			ByteBuffer chunk = slots[index];
+			if (buffer.remaining() > chunk.capacity()) {
+				chunk = ByteBuffer.allocate(buffer.remaining());
+			} else {
+				chunk.clear();
+			}
+			chunk.put(buffer);
+			chunk.flip();
+			chunks[index] = chunk;
+			timestamps[index] = timestamp;
+			published.set(index, sequence);  // a full fence, the writer thread might be going to sleep
+			drainer.wake();
+			return sequence;
+		} finally {
+			producers.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void writeBatch(long timestamp, ByteBuffer[] buffers) {
+		writeBatch(timestamp, buffers, 0, buffers.length);
+	}
+
+	// the chunks are written together if the writer thread picks them up in one batch,
+	// other producers might get in between
+	@Override
+	public void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			writeAsync(timestamp, buffers[i]);
+		}
+	}
+
+	// sequence of the last chunk that is visible to readers
+	public long getWritten() {
+		return written.get();
+	}
+
+	// blocks till the chunk with the sequence number is visible to readers
+	public void awaitWritten(long sequence) throws InterruptedException {
+		Thread thread = Thread.currentThread();
+		waiters.add(thread);
+		try {
+			while (written.get() < sequence) {
+				checkFailure();
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		} finally {
+			waiters.remove(thread);
+		}
+	}
+
+	// waits till everything written so far is flushed by the writer thread
+	@Override
+	public void flush() {
+		checkOpen();
+		long sequence = next.get() - 1;
+		long request;
+		while ((request = flushRequest.get()) < sequence && !flushRequest.compareAndSet(request, sequence)) {
+			// another producer asked for less
+		}
+		drainer.wake();
+		Thread thread = Thread.currentThread();
+		waiters.add(thread);
+		try {
+			while (flushed < sequence) {
+				checkFailure();
+				if (closed && !drainer.isAlive() && flushed < sequence) {
+					// close() ran in between and the writer thread stopped before it saw the request
+					throw new CacheException("WriteStream is closed");
+				}
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				if (Thread.interrupted()) {
+					throw new CacheException(new InterruptedException());
+				}
+			}
+		} finally {
+			waiters.remove(thread);
+		}
+	}
+
+	// writes what is left in the ring and closes the write stream
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// a producer that got past checkOpen() before still publishes, the writer thread drains it
+		while (producers.get() > 0) {
+			drainer.wake();
+			Thread.yield();
+		}
+		drainer.terminate();
+		try {
+			drainer.join();
+		} catch (InterruptedException ex) {
+			throw new CacheException(ex);
+		}
+		target.close();
+		checkFailure();
+	}
+
+	private long claim() {
+		if (multiProducer) {
+			return next.getAndIncrement();
+		}
+		long sequence = next.get();
+		next.lazySet(sequence + 1);
+		return sequence;
+	}
+
+	// the slot is free once the writer thread wrote the chunk that was in it before
+	private void awaitRoom(long sequence) {
+		long wrap = sequence - slots.length;
+		int idleCount = 0;
+		while (written.get() < wrap) {
+			checkFailure();
+			if (idleCount++ < SPIN_TRIES) {
+				continue;
+			}
+			drainer.wake();
+			LockSupport.parkNanos(this, 1000L);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new CacheException("WriteStream is closed");
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		CacheException ex = failure;
+		if (ex != null) {
+			throw new CacheException("async write failed", ex);
+		}
+	}
+
+	private void wakeWaiters() {
+		for (Thread waiter : waiters) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+
+	// the single thread that writes into the pages, chunks with the same timestamp go in one commit
+	private class Drainer extends Thread {
+
+		private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+		private volatile boolean stop = false;
+		private volatile boolean sleeping = false;
+
+
+		Drainer() {
+			this.setName("CacheAsyncWriter");
+			this.setDaemon(true);
+		}
+
+		void wake() {
+			if (sleeping) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		void terminate() {
+			stop = true;
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void run() {
+			long sequence = 0;
+			int idleCount = 0;
+			try {
+				while (true) {
+					long end = sequence;
+					while (end - sequence < MAX_BATCH && published.get((int) end & mask) == end) {
+						end++;
+					}
+					boolean progress = end > sequence;
+					if (progress) {
+						drain(sequence, end);
+						sequence = end;
+						written.set(end - 1);
+						idleCount = 0;
+					}
+					long request = flushRequest.get();
+					if (request > flushed && request < sequence) {
+						target.flush();
+						flushed = request;
+						progress = true;
+					}
+					if (progress) {
+						wakeWaiters();
+					} else if (idle(sequence, idleCount++)) {
+						return;
+					}
+				}
+			} catch (CacheException ex) {
+				fail(ex);
+			} catch (RuntimeException ex) {
+				fail(new CacheException("async writer failed", ex));
+			} catch (Error ex) {
+				fail(new CacheException("async writer failed", ex));
+				throw ex;
+			}
+		}
+
+		// producers and waiters throw instead of waiting for a writer thread that is gone
+		private void fail(CacheException ex) {
+			failure = ex;
+			wakeWaiters();
+		}
+
+		// true once the stream is closed and every claimed chunk is written
+		private boolean idle(long sequence, int idleCount) {
+			if (stop && next.get() == sequence) {
+				return true;
+			}
+			if (idleCount < SPIN_TRIES) {
+				return false;
+			}
+			sleeping = true;
+			if (published.get((int) sequence & mask) != sequence && !stop) {
+				LockSupport.parkNanos(this, MAX_PARK_NANOS);
+			}
+			sleeping = false;
+			return false;
+		}
+
+		private void drain(long start, long end) {
+			long sequence = start;
+			while (sequence < end) {
+				long timestamp = timestamps[(int) sequence & mask];
+				int count = 0;
+				while (sequence < end && timestamps[(int) sequence & mask] == timestamp) {
+					batch[count++] = chunks[(int) sequence & mask];
+					sequence++;
+				}
+				if (count == 1) {
+					target.write(timestamp, batch[0]);
+				} else {
+					target.writeBatch(timestamp, batch, 0, count);
+				}
+			}
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,68 @@
+package buffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * readers sleep on a condition till the writer signals, the writer only takes the
+ * lock if somebody is actually waiting, the await is bounded by maxWaitNanos so a
+ * reader still makes progress if the writer lives in another process and never signals
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+
+	private static final long DEFAULT_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition published = lock.newCondition();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final long maxWaitNanos;
+
+
+	public BlockingWaitStrategy() {
+		this(DEFAULT_MAX_WAIT_NANOS);
+	}
+
+	public BlockingWaitStrategy(long maxWaitNanos) {
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	@Override
+	public long sequence() {
+		return sequence.get();
+	}
+
+	@Override
+	public void waitFor(long seen, int idleCount) throws InterruptedException {
+		lock.lock();
+		try {
+			waiting.incrementAndGet();
+			long nanos = maxWaitNanos;
+			while (sequence.get() == seen && nanos > 0) {
+				nanos = published.awaitNanos(nanos);
+			}
+		} finally {
+			waiting.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		sequence.incrementAndGet();
+		if (waiting.get() == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			published.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
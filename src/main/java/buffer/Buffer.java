@@ -3,6 +3,14 @@ package buffer;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Buffer {
 	
@@ -11,80 +19,720 @@ public class Buffer {
 	long pageSize = 10000;
 	
 	final WriteStream writeStream = new WriteStream();
+	final ConcurrentWriteStream concurrentWriteStream = new ConcurrentWriteStream();
+	boolean multiProducer;
+	boolean compression;
 	final WritePageFactory writePageFactory = new WritePageFactory();
 
-	final ReadStream readStream = new ReadStream();
+	ReadStream readStream;
+	final Map<String, ReadStream> namedReadStreams = new HashMap<>();
+	// guards the open streams, not a monitor since readers on virtual threads would pin their carrier
+	private final ReentrantLock streamLock = new ReentrantLock();
 	final ReadPageFactory readPageFactory = new ReadPageFactory();
 	
+	WaitStrategy waitStrategy = new ParkingWaitStrategy();
+
+	// null unless metrics are enabled
+	BufferMetrics metrics;
+
+	private boolean chunkTimestamps;
+	private boolean checksums;
+	VerifyPolicy verifyPolicy = VerifyPolicy.fail();
+
+	// null unless readahead is enabled
+	PageReadahead readahead;
+
+	// 0 unless producers hand their chunks to a writer thread
+	private int asyncRingSize;
+	private int asyncSlotSize;
+
+	// run by the writer after each publish, e.g. to wake publishers that ran out of chunks
+	private final List<Runnable> publishListeners = new CopyOnWriteArrayList<>();
+
+	private boolean sharedSpool;
+	// null unless the spool is shared by processes, opened with the first stream
+	ControlFile controlFile;
+	private final ReentrantLock controlFileLock = new ReentrantLock();
+	private SharedWaitStrategy sharedWaitStrategy;
+
+	public Buffer() {
+		readPageFactory.setPageRecycler(writePageFactory);
+	}
 
 	public void setPageSize(int size) {
 		writePageFactory.setPageSize(size);
 	}
+
+	// pages created and mapped ahead of time by a background thread,
+	// optionally with their memory already faulted in
+	public void setPagePoolSize(int poolSize, boolean touchPages) {
+		writePageFactory.setPagePoolSize(poolSize);
+		writePageFactory.setTouchPages(touchPages);
+	}
 	
 	public void setCacheDir(File cacheDir) {
+		directory = cacheDir;
 		readPageFactory.setCacheDir(cacheDir);
 		writePageFactory.setCacheDir(cacheDir);
 	}
+
+	// when written data is synced to disk, the default syncs each page when it is complete
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		writePageFactory.setFlushPolicy(flushPolicy);
+	}
+
+	// store the timestamp of each chunk so readers can start exactly at a timestamp
+	// instead of the start of the page, costs 4 bytes per chunk
+	public void setChunkTimestamps(boolean chunkTimestamps) {
+		this.chunkTimestamps = chunkTimestamps;
+		writePageFactory.setPageVersion(PageMetadata.version(chunkTimestamps, checksums));
+	}
+
+	// store a CRC32C of each chunk so readers and the recovery after a crash can tell
+	// a torn or corrupted chunk from a good one, costs 4 bytes per chunk
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+		writePageFactory.setPageVersion(PageMetadata.version(chunkTimestamps, checksums));
+	}
+
+	// what readers do with a chunk whose checksum doesn't match, only pages with checksums are verified,
+	// needs to be set before the read streams are opened
+	public void setVerifyPolicy(VerifyPolicy verifyPolicy) {
+		this.verifyPolicy = verifyPolicy;
+	}
+
+	// how much the spool may keep on disk and what the writer does when it is full
+	public void setCapacityPolicy(CapacityPolicy capacityPolicy) {
+		writePageFactory.setCapacityPolicy(capacityPolicy);
+	}
+
+	// compress the chunks in blocks, chunks become visible to readers when a block is full,
+	// on flush() or on a page rollover, doesn't work with multiple producers
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+		writePageFactory.setPageCodec(compression
+				? PageMetadata.LZ4_CODEC : PageMetadata.NO_CODEC);
+	}
+
+	// the write stream can be shared by many producer threads,
+	// needs to be set before the write stream is opened
+	public void setMultiProducer(boolean multiProducer) {
+		this.multiProducer = multiProducer;
+	}
+
+	// counters and latency histograms of the streams, needs to be set before any stream is opened,
+	// register() makes them available in JMX
+	public void setMetrics(BufferMetrics metrics) {
+		this.metrics = metrics;
+		writePageFactory.setMetrics(metrics);
+		readPageFactory.setMetrics(metrics);
+		if (readahead != null) {
+			readahead.setMetrics(metrics);
+		}
+	}
+
+	public BufferMetrics getMetrics() {
+		return metrics;
+	}
+
+	// readers fault in the next pages in the background while they read the current one, so a reader
+	// that catches up doesn't wait for the disk on every page fault, each reader prefetches at most
+	// the given number of complete pages and no more bytes than maxBytes, 0 pages turns it off,
+	// needs to be set before any stream is opened
+	public void setReadahead(int pages, long maxBytes) {
+		if (pages < 0 || maxBytes < 0) {
+			throw new CacheException("readahead can't be negative");
+		}
+		readahead = pages == 0 ? null : new PageReadahead(readPageFactory, pages, maxBytes);
+		if (readahead != null) {
+			readahead.setMetrics(metrics);
+		}
+	}
+
+	// needs to be set before any stream is opened
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		this.waitStrategy = waitStrategy;
+	}
+
+	// producers copy their chunks into a ring of ringSize slots of slotSize bytes and return right away,
+	// a writer thread writes them into the pages, getWriteStream() returns an AsyncWriteStream then,
+	// works with multiple producers and with compression, needs to be set before the write stream is opened
+	public void setAsyncWrites(int ringSize, int slotSize) {
+		if (ringSize < 0 || slotSize < 0) {
+			throw new CacheException("async ring can't be negative");
+		}
+		this.asyncRingSize = ringSize;
+		this.asyncSlotSize = slotSize;
+	}
+
+	// the writer and the readers live in different processes on this host, they share a control file
+	// with the heartbeat of the writer and a doorbell that wakes readers in other processes right away,
+	// replaces the wait strategy, needs to be set in every process before any stream is opened
+	public void setSharedSpool(boolean sharedSpool) {
+		this.sharedSpool = sharedSpool;
+	}
+
+	// true if a writer in any process has the spool open and its heartbeat is recent,
+	// only known for a shared spool
+	public boolean isWriterAlive() {
+		if (!sharedSpool) {
+			throw new CacheException("the writer is only known for a shared spool");
+		}
+		return openControlFile().isWriterAlive();
+	}
+
+	private ControlFile openControlFile() {
+		controlFileLock.lock();
+		try {
+			if (controlFile == null) {
+				controlFile = new ControlFile(directory);
+				sharedWaitStrategy = new SharedWaitStrategy(controlFile);
+				waitStrategy = sharedWaitStrategy;
+			}
+			return controlFile;
+		} finally {
+			controlFileLock.unlock();
+		}
+	}
+
+	// chunks up to the tail of the page are visible, wakes the readers
+	private void published(WritePage page) {
+		published(page, page.tail());
+	}
+
+	// with many producers only the chunks up to end of the page are published, the page might be closed
+	private void published(WritePage page, long end) {
+		if (sharedWaitStrategy != null) {
+			sharedWaitStrategy.published(page.getMetaData().getPageIndex(), end);
+		} else {
+			waitStrategy.signalAll();
+		}
+		if (!publishListeners.isEmpty()) {
+			for (Runnable listener : publishListeners) {
+				listener.run();
+			}
+		}
+	}
+
+	// the listener has to be quick, it runs on the writer thread after every write
+	// and with many producers on each producer, it must not block or run foreign code
+	void addPublishListener(Runnable listener) {
+		publishListeners.add(listener);
+	}
+
+	void removePublishListener(Runnable listener) {
+		publishListeners.remove(listener);
+	}
+
+	private void closeWriter() {
+		if (controlFile != null) {
+			controlFile.closeWriter();
+		}
+	}
 			
 	IWriteStream getWriteStream(long timestamp) {
-		if (writeStream.open) {
+		if (writeStream.open || concurrentWriteStream.open) {
 			throw new CacheException("WriteStream is already open");
 		}
+		if (multiProducer && compression && asyncRingSize == 0) {
+			throw new CacheException("compressed pages can't be shared by producers");
+		}
+		if (sharedSpool) {
+			openControlFile().openWriter();
+		}
+		// with a ring only the writer thread uses the stream behind it
+		if (multiProducer && asyncRingSize == 0) {
+			concurrentWriteStream.open = true;
+			writePageFactory.initialize();
+			concurrentWriteStream.currentPage = writePageFactory.resume(timestamp).share();
+			return concurrentWriteStream;
+		}
 		writeStream.open = true;
 		writePageFactory.initialize();
-		writeStream.currentPage = writePageFactory.create(timestamp);
+		writeStream.currentPage = writePageFactory.resume(timestamp);
+		if (asyncRingSize > 0) {
+			return new AsyncWriteStream(writeStream, asyncRingSize, asyncSlotSize, multiProducer).start();
+		}
 		return writeStream;
 	}
 	
 
 	// this might block if nothing has been written yet
 	IReadStream getReadStream(long timestamp) {
-		if (readStream.open) {
-			throw new CacheException("WriteStream is already open");
+		ReadStream stream;
+		streamLock.lock();
+		try {
+			if (readStream != null) {
+				throw new CacheException("ReadStream is already open");
+			}
+			if (sharedSpool) {
+				openControlFile();
+			}
+			readPageFactory.initialize();
+			readStream = new ReadStream(readPageFactory.anonymousCursor());
+			stream = readStream;
+		} finally {
+			streamLock.unlock();
+		}
+		try {
+			stream.start(readPageFactory.findPageBefore(timestamp, stream.cursor));
+			stream.seek(timestamp);
+		} catch (CacheException ex) {
+			stream.abort();
+			throw ex;
+		}
+		return stream;
+	}
+
+	// a named reader continues where it was closed the last time, even after a restart,
+	// the timestamp is only used if the reader is new, pages are only deleted after
+	// all named readers moved past them
+	IReadStream getReadStream(String name, long timestamp) {
+		ReadStream stream;
+		streamLock.lock();
+		try {
+			if (namedReadStreams.containsKey(name)) {
+				throw new CacheException("ReadStream '" + name + "' is already open");
+			}
+			if (sharedSpool) {
+				openControlFile();
+			}
+			readPageFactory.initialize();
+			stream = new ReadStream(readPageFactory.openCursor(name));
+			namedReadStreams.put(name, stream);
+		} finally {
+			streamLock.unlock();
+		}
+		long pageIndex = stream.cursor.getPageIndex();
+		try {
+			if (pageIndex == ReaderCursor.UNSET) {
+				stream.start(readPageFactory.findPageBefore(timestamp, stream.cursor));
+				stream.seek(timestamp);
+			} else {
+				long position = stream.cursor.getPosition();
+				ReadPage page;
+				try {
+					page = readPageFactory.getPage(pageIndex);
+				} catch (DataLostException ex) {
+					// the writer dropped the page, the first read reports it
+					stream.lostData = ex;
+					page = null;
+				}
+				if (page != null) {
+					stream.start(page);
+					stream.currentPage.position(position);
+				} else {
+					stream.start(readPageFactory.getFirstPage());
+				}
+			}
+		} catch (CacheException ex) {
+			// a new reader that never started would hold back the deletion of every page
+			stream.abort(pageIndex == ReaderCursor.UNSET);
+			throw ex;
+		}
+		return stream;
+	}
+
+	// forget a named reader so it no longer holds back the deletion of pages
+	public void deleteReader(String name) {
+		streamLock.lock();
+		try {
+			if (namedReadStreams.containsKey(name)) {
+				throw new CacheException("ReadStream '" + name + "' is still open");
+			}
+			readPageFactory.initialize();
+			try {
+				readPageFactory.deleteCursor(name);
+				readPageFactory.reclaimPages();
+			} finally {
+				readPageFactory.close();
+			}
+		} finally {
+			streamLock.unlock();
 		}
-		readStream.open = true;
-		readPageFactory.initialize();
-		readStream.currentPage = readPageFactory.findPageBefore(timestamp);
-		return readStream;
 	}
 
 	
 	
 	
+	static long remaining(ByteBuffer[] buffers, int offset, int length) {
+		long bytes = 0;
+		for (int i = offset; i < offset + length; i++) {
+			bytes += buffers[i].remaining();
+		}
+		return bytes;
+	}
+
 	class ReadStream implements IReadStream {
 
-		boolean open;
+		final ReaderCursor cursor;
 		ReadPage currentPage;
+		long currentIndex;
+
+		// older chunks are skipped with the first read
+		private boolean seeking;
+		private long seekTimestamp;
+
+		// reported with the next read if it happened while chunks were returned
+		DataLostException lostData;
+
+		// null unless readahead is enabled
+		private final PageReadahead.Window readaheadWindow;
+
+		// the pieces of a chunk that spans pages are joined here, grows with the biggest chunk
+		private ByteBuffer spanning = ByteBuffer.allocate(0);
+		// pollBatch() stopped in the middle of a chunk that spans pages, the pieces so far are in spanning
+		private boolean joining;
+
+		ReadStream(ReaderCursor cursor) {
+			this.cursor = cursor;
+			this.readaheadWindow = readahead != null ? readahead.open() : null;
+		}
+
+		void start(ReadPage page) {
+			currentPage = new ReadPage(page).verify(verifyPolicy, metrics).open();
+			currentIndex = currentPage.getIndex();
+			cursor.update(currentIndex, currentPage.position());
+			if (readaheadWindow != null) {
+				readaheadWindow.enter(currentIndex);
+			}
+		}
 		
+		void seek(long timestamp) {
+			seeking = true;
+			seekTimestamp = timestamp;
+		}
+
 		@Override
 		public ByteBuffer read() {
-			ByteBuffer result = currentPage.read();
+			reportLostData();
+			if (seeking) {
+				skipOlderChunks(true);
+			}
+			// a chunk that spans pages might be half joined by pollBatch()
+			ByteBuffer result = joining ? null : currentPage.read();
+			long waitStart = metrics != null && (result == null || result.remaining() == 0) ? System.nanoTime() : 0;
+			if (result != null) {
+				result = awaitChunk(result);
+			}
+			while (result == null || currentPage.isFragment() || currentPage.isContinuation()) {
+				ByteBuffer chunk = joinFragments(result, true);
+				if (chunk == spanning) {
+					// the caller keeps the chunk, the next one that spans pages reuses the buffer
+					result = ByteBuffer.allocate(chunk.remaining()).put(chunk);
+					result.flip();
+					break;
+				}
+				if (chunk != null) {
+					result = chunk;
+					break;
+				}
+				result = awaitChunk(currentPage.read());
+			}
+			cursor.update(currentIndex, currentPage.position());
+			if (metrics != null) {
+				if (waitStart != 0) {
+					metrics.readWaitTime.record(System.nanoTime() - waitStart);
+				}
+				metrics.read(result.remaining(), 1);
+				if (currentPage.hasChunkTimestamps()) {
+					metrics.delivered(currentPage.lastChunkTimestamp());
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public int readBatch(ChunkHandler handler, int maxChunks) {
+			return readBatch(handler, maxChunks, true);
+		}
+
+		@Override
+		public int pollBatch(ChunkHandler handler, int maxChunks) {
+			return readBatch(handler, maxChunks, false);
+		}
+
+		private int readBatch(ChunkHandler handler, int maxChunks, boolean wait) {
+			if (maxChunks <= 0) {
+				throw new CacheException("maxChunks must be positive: " + maxChunks);
+			}
+			reportLostData();
+			if (seeking && !skipOlderChunks(wait)) {
+				return 0;
+			}
+			if (metrics != null) {
+				meteredHandler.handler = handler;
+				handler = meteredHandler;
+			}
+			int idleCount = 0;
+			int count = 0;
+			long waitStart = 0;
+			while (true) {
+				long sequence = waitStrategy.sequence();
+				meteredHandler.page = currentPage;
+				count += currentPage.read(handler, maxChunks - count);
+				if (count == 0 && (joining || currentPage.atFragment())) {
+					ByteBuffer chunk = joinFragments(joining ? null : currentPage.read(), wait);
+					if (chunk != null) {
+						meteredHandler.page = currentPage;
+						handler.onChunk(chunk, chunk.position(), chunk.remaining());
+						count++;
+					} else if (joining) {
+						return 0;  // the next piece isn't there yet, the next poll continues with it
+					}
+					continue;
+				}
+				if (count > 0 && waitStart != 0) {
+					metrics.readWaitTime.record(System.nanoTime() - waitStart);
+					waitStart = 0;
+				}
+				if (count == 0 && waitStart == 0 && metrics != null) {
+					waitStart = System.nanoTime();
+				}
+				if (count == maxChunks) {
+					cursor.update(currentIndex, currentPage.position());
+					return count;
+				}
+				if (count > 0) {
+					// only move on if the next page is already there
+					boolean moved;
+					try {
+						moved = currentPage.isReadComplete() && moveToNextPage(false);
+					} catch (DataLostException ex) {
+						lostData = ex;
+						moved = false;
+					}
+					if (!moved) {
+						cursor.update(currentIndex, currentPage.position());
+						return count;
+					}
+				} else if (currentPage.isReadComplete()) {
+					if (!moveToNextPage(wait)) {
+						return 0;
+					}
+					idleCount = 0;
+				} else if (wait) {
+					idle(sequence, idleCount++);
+				} else {
+					return 0;
+				}
+			}
+		}
+
+		@Override
+		public void read(ChunkView view) {
+			readBatch(view, 1);
+		}
+
+		// the chunk that was just read or the next one, moves on to the next pages and waits if necessary
+		private ByteBuffer awaitChunk(ByteBuffer result) {
+			int idleCount = 0;
+			long sequence = waitStrategy.sequence();
 			while (result.remaining() == 0) {
 				if (currentPage.isReadComplete()) {
-					ReadPage nextPage = readPageFactory.getNextPage(currentPage);
-					currentPage.close();
-					readPageFactory.deletePage(currentPage);
-					currentPage = nextPage;
-					currentPage.open();
+					moveToNextPage(true);
+					idleCount = 0;
+				} else {
+					idle(sequence, idleCount++);
+				}
+				sequence = waitStrategy.sequence();
+				result = currentPage.read();
+			}
+			return result;
+		}
+
+		// like awaitChunk() but returns the empty buffer instead of waiting, might move to the next page
+		private ByteBuffer pollChunk(ByteBuffer result) {
+			while (result.remaining() == 0 && currentPage.isReadComplete() && moveToNextPage(false)) {
+				result = currentPage.read();
+			}
+			return result;
+		}
+
+		// joins the pieces of a chunk that spans pages, starting with the piece read last or with the
+		// pieces so far if piece is null, returns null for pieces without their start, e.g. the writer
+		// dropped the page with the first piece, without wait also if the next piece isn't there yet,
+		// joining stays set then, a piece is only valid until the page is left, so they are copied
+		// into the spanning buffer
+		private ByteBuffer joinFragments(ByteBuffer piece, boolean wait) {
+			if (piece != null) {
+				if (currentPage.isContinuation()) {
+					return null;
+				}
+				spanning.clear();
+				append(piece);
+				joining = true;
+			}
+			while (joining) {
+				piece = wait ? awaitChunk(currentPage.read()) : pollChunk(currentPage.read());
+				if (piece.remaining() == 0) {
+					return null;
+				}
+				if (!currentPage.isContinuation()) {
+					// the writer restarted before the chunk was complete, the pieces so far are lost
+					if (!currentPage.isFragment()) {
+						joining = false;
+						return piece;
+					}
+					spanning.clear();
+				}
+				append(piece);
+				joining = currentPage.isFragment();
+			}
+			spanning.flip();
+			return spanning;
+		}
+
+		private void append(ByteBuffer piece) {
+			if (spanning.remaining() < piece.remaining()) {
+				long size = Math.max((long) spanning.capacity() * 2, (long) spanning.position() + piece.remaining());
+				ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+				spanning.flip();
+				bigger.put(spanning);
+				spanning = bigger;
+			}
+			spanning.put(piece);
+		}
+
+		// blocks till there is a chunk at or after the seek timestamp,
+		// false if we don't wait and there is none yet
+		private boolean skipOlderChunks(boolean wait) {
+			int idleCount = 0;
+			while (true) {
+				long sequence = waitStrategy.sequence();
+				if (currentPage.seek(seekTimestamp)) {
+					seeking = false;
+					cursor.update(currentIndex, currentPage.position());
+					return true;
+				}
+				if (currentPage.isReadComplete()) {
+					if (!moveToNextPage(wait)) {
+						return false;
+					}
+					idleCount = 0;
+				} else if (wait) {
+					idle(sequence, idleCount++);
+				} else {
+					return false;
+				}
+			}
+		}
+
+		// counts the chunks of readBatch() on their way to the caller's handler
+		private final MeteredHandler meteredHandler = new MeteredHandler();
+
+		private class MeteredHandler implements ChunkHandler {
+
+			ChunkHandler handler;
+			ReadPage page;
+
+			@Override
+			public void onChunk(ByteBuffer buffer, int offset, int length) {
+				metrics.read(length, 1);
+				if (buffer == spanning) {
+					if (page.hasChunkTimestamps()) {
+						metrics.delivered(page.lastChunkTimestamp());
+					}
+				} else if (page.hasChunkTimestamps()) {
+					// the timestamp follows the size
+					int header = offset - page.headerSize();
+					metrics.delivered(page.getTimestamp() + buffer.getInt(header + PageMetadata.INT_SIZE));
+				}
+				handler.onChunk(buffer, offset, length);
+			}
+
+		}
+
+		private void reportLostData() {
+			DataLostException ex = lostData;
+			if (ex != null) {
+				lostData = null;
+				throw ex;
+			}
+		}
+
+		// false if we don't wait and the next page isn't there yet, if the writer dropped
+		// pages we didn't read the stream moves to the oldest page and throws DataLostException
+		private boolean moveToNextPage(boolean wait) {
+			long firstLost = -1;
+			long lastLost = -1;
+			while (true) {
+				ReadPage nextPage;
+				try {
+					nextPage = wait ? readPageFactory.getNextPage(currentPage)
+							: readPageFactory.pollNextPage(currentPage);
+				} catch (DataLostException ex) {
+					firstLost = firstLost < 0 ? ex.getFirstLostPage() : firstLost;
+					lastLost = Math.max(lastLost, ex.getLastLostPage());
+					nextPage = readPageFactory.getFirstPage();
+				}
+				if (nextPage == null) {
+					return false;
 				}
-				
 				try {
-					Thread.sleep(1);  
-				} catch (InterruptedException ex) {
-					throw new CacheException(ex);
+					nextPage(nextPage);
+				} catch (CacheException ex) {
+					if (nextPage.exists()) {
+						throw ex;
+					}
+					// dropped before the directory told us
+					readPageFactory.dropped(nextPage.getIndex());
+					firstLost = firstLost < 0 ? nextPage.getIndex() : firstLost;
+					lastLost = Math.max(lastLost, nextPage.getIndex());
+					continue;
 				}
-				
-				//Thread.yield();
-				result = currentPage.read();				
+				if (firstLost >= 0) {
+					throw new DataLostException(firstLost, lastLost);
+				}
+				return true;
+			}
+		}
+
+		// the page we leave is deleted once the slowest reader moved past it
+		private void nextPage(ReadPage nextPage) {
+			ReadPage lastPage = currentPage;
+			start(nextPage);
+			lastPage.close();
+			readPageFactory.reclaimPages();
+		}
+
+		private void idle(long sequence, int idleCount) {
+			try {
+				waitStrategy.waitFor(sequence, idleCount);
+			} catch (InterruptedException ex) {
+				throw new CacheException(ex);
 			}
-			return result;
 		}
 		
 		@Override
 		public void close() throws IOException {
-			open = false;
 			currentPage.close();
-			readPageFactory.close();
+			abort();
+		}
+
+		void abort() {
+			abort(false);
+		}
+
+		void abort(boolean deleteCursor) {
+			if (readaheadWindow != null) {
+				readaheadWindow.close();
+			}
+			streamLock.lock();
+			try {
+				if (cursor.getName() == null) {
+					readStream = null;
+					readPageFactory.removeCursor(cursor);
+				} else {
+					namedReadStreams.remove(cursor.getName());
+					if (deleteCursor) {
+						readPageFactory.deleteCursor(cursor.getName());
+					}
+				}
+				readPageFactory.close();
+			} finally {
+				streamLock.unlock();
+			}
 		}
 		
 	}
@@ -99,14 +747,108 @@ public class Buffer {
 		
 		@Override
 		public void write(long timestamp, ByteBuffer buffer) {
-			if (currentPage.remainingForWrite() < buffer.remaining()) {
-				currentPage.close();
-				currentPage = writePageFactory.create(timestamp);
+			long start = metrics != null ? System.nanoTime() : 0;
+			int bytes = buffer.remaining();
+			if (bytes > currentPage.maxChunkSize() && !compression) {
+				writeFragments(timestamp, buffer);
+			} else {
+				if (currentPage.remainingForWrite() < buffer.remaining() || !currentPage.accepts(timestamp)) {
+					rollover(timestamp);
+				}
+				if (currentPage.remainingForWrite() < buffer.remaining()) {
+					throw new CacheException("buffer too big for a new page");
+				}
+				currentPage.write(timestamp, buffer);
 			}
-			if (currentPage.remainingForWrite() < buffer.remaining()) {
-				throw new CacheException("buffer too big for a new page");
+			published(currentPage);
+			if (metrics != null) {
+				metrics.written(bytes, 1, start);
 			}
-			currentPage.write(buffer);
+		}
+
+		@Override
+		public void writeBatch(long timestamp, ByteBuffer[] buffers) {
+			writeBatch(timestamp, buffers, 0, buffers.length);
+		}
+
+		@Override
+		public void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length) {
+			long start = metrics != null ? System.nanoTime() : 0;
+			long bytes = metrics != null ? remaining(buffers, offset, length) : 0;
+			// start a new page if that keeps the batch in a single commit
+			if (!currentPage.accepts(timestamp) || (!currentPage.isEmpty()
+					&& currentPage.chunksForWrite(buffers, offset, length) < length)) {
+				rollover(timestamp);
+			}
+			int end = offset + length;
+			while (offset < end) {
+				int count = currentPage.chunksForWrite(buffers, offset, end - offset);
+				if (count == 0 && buffers[offset].remaining() > currentPage.maxChunkSize() && !compression) {
+					writeFragments(timestamp, buffers[offset++]);
+					continue;
+				}
+				if (count == 0) {
+					rollover(timestamp);
+					count = currentPage.chunksForWrite(buffers, offset, end - offset);
+				}
+				if (count == 0) {
+					throw new CacheException("buffer too big for a new page");
+				}
+				currentPage.write(timestamp, buffers, offset, count);
+				offset += count;
+			}
+			published(currentPage);
+			if (metrics != null) {
+				metrics.written(bytes, length, start);
+			}
+		}
+
+		// a chunk bigger than a page goes in pieces over as many pages as it takes,
+		// starting in the current page, readers see the pieces as they are written
+		private void writeFragments(long timestamp, ByteBuffer buffer) {
+			int limit = buffer.limit();
+			int flags = 0;
+			try {
+				while (true) {
+					long room = Math.min(currentPage.remainingForWrite(), PageMetadata.MAX_CHUNK_SIZE);
+					if (room <= 0 || !currentPage.accepts(timestamp)) {
+						if (currentPage.isEmpty()) {
+							throw new CacheException("page too small for a chunk header");
+						}
+						rollover(timestamp);
+						continue;
+					}
+					boolean last = buffer.remaining() <= room;
+					buffer.limit(last ? limit : buffer.position() + (int) room);
+					currentPage.writeFragment(timestamp, buffer, last ? flags : flags | PageMetadata.MORE_FRAGMENTS);
+					buffer.limit(limit);
+					if (last) {
+						return;
+					}
+					flags = PageMetadata.CONTINUATION;
+					published(currentPage);
+					rollover(timestamp);
+				}
+			} finally {
+				buffer.limit(limit);
+			}
+		}
+
+		// the current page stays open if the capacity policy refuses a new one
+		private void rollover(long timestamp) {
+			long start = metrics != null ? System.nanoTime() : 0;
+			WritePage nextPage = writePageFactory.create(timestamp);
+			currentPage.close();
+			currentPage = nextPage;
+			if (metrics != null) {
+				metrics.rolloverTime.record(System.nanoTime() - start);
+			}
+		}
+
+		@Override
+		public void flush() {
+			currentPage.flush();
+			published(currentPage);
 		}
 
 		@Override
@@ -114,8 +856,154 @@ public class Buffer {
 			open = false;
 			currentPage.close();
 			writePageFactory.close();
+			closeWriter();
 		}
 		
 	}
 
+	
+
+	// producers claim space in the current page with a single atomic add and copy in parallel,
+	// the one producer that finds the page full creates the next page, the others wait for it
+	class ConcurrentWriteStream implements IWriteStream {
+
+		private volatile boolean open;
+		volatile WritePage currentPage;
+		// producers waiting for the one that creates the next page
+		private final Queue<Thread> rollWaiters = new ConcurrentLinkedQueue<>();
+
+
+		@Override
+		public void write(long timestamp, ByteBuffer buffer) {
+			int chunksize = buffer.remaining();
+			if (chunksize == 0) {
+				return;  // a zero size would look like the end of the data to readers
+			}
+			if (chunksize > PageMetadata.MAX_CHUNK_SIZE) {
+				throw new CacheException("chunk too big for many producers: " + chunksize);
+			}
+			long start = metrics != null ? System.nanoTime() : 0;
+			int bytes = writePageFactory.chunkHeaderSize() + chunksize;
+			WritePage page;
+			int end;
+			while (true) {
+				page = currentPage;
+				if (bytes > page.capacityForWrite()) {
+					throw new CacheException("buffer too big for a new page");
+				}
+				long reserved = page.reserve(bytes, timestamp);
+				if (reserved >= 0) {
+					end = page.publish(reserved, timestamp, buffer);
+					break;
+				}
+				nextPage(page, reserved, timestamp);
+			}
+			published(page, end);
+			if (metrics != null) {
+				metrics.written(chunksize, 1, start);
+			}
+		}
+
+		@Override
+		public void writeBatch(long timestamp, ByteBuffer[] buffers) {
+			writeBatch(timestamp, buffers, 0, buffers.length);
+		}
+
+		@Override
+		public void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length) {
+			int headerSize = writePageFactory.chunkHeaderSize();
+			long bytes = 0;
+			for (int i = offset; i < offset + length; i++) {
+				int chunksize = buffers[i].remaining();
+				if (chunksize > PageMetadata.MAX_CHUNK_SIZE) {
+					throw new CacheException("chunk too big for many producers: " + chunksize);
+				}
+				if (chunksize > 0) {
+					bytes += headerSize + chunksize;
+				}
+			}
+			if (bytes == 0) {
+				return;
+			}
+			long start = metrics != null ? System.nanoTime() : 0;
+			long payload = metrics != null ? remaining(buffers, offset, length) : 0;
+			WritePage page;
+			int end;
+			while (true) {
+				page = currentPage;
+				if (bytes > page.capacityForWrite()) {
+					// doesn't fit into a single page, keep the chunks atomic at least
+					for (int i = offset; i < offset + length; i++) {
+						write(timestamp, buffers[i]);
+					}
+					return;
+				}
+				long reserved = page.reserve((int) bytes, timestamp);
+				if (reserved >= 0) {
+					end = page.publish(reserved, timestamp, buffers, offset, length);
+					break;
+				}
+				nextPage(page, reserved, timestamp);
+			}
+			published(page, end);
+			if (metrics != null) {
+				metrics.written(payload, length, start);
+			}
+		}
+
+		// exactly one producer at a time gets ROLL for a page, every other one waits until it is
+		// replaced, if creating the next page fails the roll is handed back and the next producer
+		// that reserves tries again, like the single producer stream does on its next write
+		private void nextPage(WritePage page, long reserved, long timestamp) {
+			if (reserved == WritePage.ROLL) {
+				long start = metrics != null ? System.nanoTime() : 0;
+				try {
+					currentPage = writePageFactory.create(timestamp).share();
+				} catch (CacheException ex) {
+					page.releaseRoll();
+					throw ex;
+				} finally {
+					wakeRollWaiters();
+				}
+				page.awaitProducers();
+				page.close();
+				if (metrics != null) {
+					metrics.rolloverTime.record(System.nanoTime() - start);
+				}
+				return;
+			}
+			Thread thread = Thread.currentThread();
+			rollWaiters.add(thread);
+			try {
+				// the caller reserves again once the page is replaced or the roll was handed back
+				while (currentPage == page && page.isRollClaimed()) {
+					LockSupport.park(this);
+				}
+			} finally {
+				rollWaiters.remove(thread);
+			}
+		}
+
+		private void wakeRollWaiters() {
+			for (Thread waiter : rollWaiters) {
+				LockSupport.unpark(waiter);
+			}
+		}
+
+		@Override
+		public void flush() {
+			currentPage.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			open = false;
+			currentPage.awaitProducers();
+			currentPage.close();
+			writePageFactory.close();
+			closeWriter();
+		}
+
+	}
+
 }
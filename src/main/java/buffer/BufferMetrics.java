@@ -0,0 +1,178 @@
+package buffer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * optional instrumentation of a buffer, the writer and the readers only increment counters
+ * and histogram buckets so it can stay on in production,
+ * the end-to-end latency needs chunk timestamps in epoch milliseconds and has their resolution
+ */
+public class BufferMetrics implements BufferMetricsMXBean {
+
+	static final String DOMAIN = "buffer";
+
+	final AtomicLong bytesWritten = new AtomicLong();
+	final AtomicLong chunksWritten = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong chunksRead = new AtomicLong();
+	final AtomicLong pagesCreated = new AtomicLong();
+	final AtomicLong pagesDeleted = new AtomicLong();
+	final AtomicLong pagesDropped = new AtomicLong();
+	final AtomicLong corruptChunks = new AtomicLong();
+	final AtomicLong pagesPrefetched = new AtomicLong();
+
+	final LatencyHistogram writeTime = new LatencyHistogram();
+	final LatencyHistogram rolloverTime = new LatencyHistogram();  // including a blocked writer
+	final LatencyHistogram readWaitTime = new LatencyHistogram();  // only reads that had to wait
+	final LatencyHistogram endToEndLatency = new LatencyHistogram();
+
+	private ObjectName objectName;
+
+
+	void written(long bytes, long chunks, long startNanos) {
+		writeTime.record(System.nanoTime() - startNanos);
+		bytesWritten.addAndGet(bytes);
+		chunksWritten.addAndGet(chunks);
+	}
+
+	void read(long bytes, long chunks) {
+		bytesRead.addAndGet(bytes);
+		chunksRead.addAndGet(chunks);
+	}
+
+	// the chunk timestamp is taken as epoch milliseconds
+	void delivered(long timestamp) {
+		endToEndLatency.record((System.currentTimeMillis() - timestamp) * 1000000L);
+	}
+
+	// registers the metrics as buffer:type=Buffer,name=<name> with the platform MBean server
+	public synchronized void register(String name) {
+		if (objectName != null) {
+			throw new CacheException("metrics are already registered as " + objectName);
+		}
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=Buffer,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException ex) {
+			throw new CacheException("error registering metrics '" + name + "'", ex);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException ex) {
+			throw new CacheException("error unregistering metrics " + objectName, ex);
+		} finally {
+			objectName = null;
+		}
+	}
+
+	synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public long getChunksWritten() {
+		return chunksWritten.get();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	@Override
+	public long getChunksRead() {
+		return chunksRead.get();
+	}
+
+	@Override
+	public long getPagesCreated() {
+		return pagesCreated.get();
+	}
+
+	@Override
+	public long getPagesDeleted() {
+		return pagesDeleted.get();
+	}
+
+	@Override
+	public long getPagesDropped() {
+		return pagesDropped.get();
+	}
+
+	@Override
+	public long getCorruptChunks() {
+		return corruptChunks.get();
+	}
+
+	@Override
+	public long getPagesPrefetched() {
+		return pagesPrefetched.get();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getWriteTime() {
+		return writeTime.summary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getRolloverTime() {
+		return rolloverTime.summary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getReadWaitTime() {
+		return readWaitTime.summary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getEndToEndLatency() {
+		return endToEndLatency.summary();
+	}
+
+	@Override
+	public void reset() {
+		bytesWritten.set(0);
+		chunksWritten.set(0);
+		bytesRead.set(0);
+		chunksRead.set(0);
+		pagesCreated.set(0);
+		pagesDeleted.set(0);
+		pagesDropped.set(0);
+		corruptChunks.set(0);
+		pagesPrefetched.set(0);
+		writeTime.reset();
+		rolloverTime.reset();
+		readWaitTime.reset();
+		endToEndLatency.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "written " + getBytesWritten() + " bytes in " + getChunksWritten() + " chunks, read "
+				+ getBytesRead() + " bytes in " + getChunksRead() + " chunks, pages created "
+				+ getPagesCreated() + " deleted " + getPagesDeleted() + " dropped " + getPagesDropped()
+				+ " prefetched " + getPagesPrefetched()
+				+ ", corrupt chunks " + getCorruptChunks();
+	}
+
+}
@@ -0,0 +1,36 @@
+package buffer;
+
+/**
+ * the metrics of a buffer in JMX, times and latencies are in nanoseconds
+ */
+public interface BufferMetricsMXBean {
+
+	long getBytesWritten();
+
+	long getChunksWritten();
+
+	long getBytesRead();
+
+	long getChunksRead();
+
+	long getPagesCreated();
+
+	long getPagesDeleted();
+
+	long getPagesDropped();
+
+	long getCorruptChunks();
+
+	long getPagesPrefetched();
+
+	LatencyHistogram.Summary getWriteTime();
+
+	LatencyHistogram.Summary getRolloverTime();
+
+	LatencyHistogram.Summary getReadWaitTime();
+
+	LatencyHistogram.Summary getEndToEndLatency();
+
+	void reset();
+
+}
@@ -0,0 +1,23 @@
+package buffer;
+
+/**
+ * lowest latency, burns a full core per reader while idle
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+	@Override
+	public long sequence() {
+		return 0;
+	}
+
+	@Override
+	public void waitFor(long sequence, int idleCount) {
+		// spin right back into the page
+	}
+
+	@Override
+	public void signalAll() {
+		// nobody sleeps
+	}
+
+}
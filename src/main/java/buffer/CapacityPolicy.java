@@ -0,0 +1,65 @@
+package buffer;
+
+/**
+ * how many pages and bytes the spool may keep on disk and what the writer does
+ * when it needs a new page and the limit is reached, a limit of 0 isn't checked,
+ * pages prepared by the page pool don't count
+ */
+public class CapacityPolicy {
+
+	enum Mode {
+		UNBOUNDED,    // no limit
+		BLOCK,        // the writer waits until readers delete pages
+		DROP_OLDEST,  // the writer deletes the oldest pages, lagging readers lose data
+		FAIL          // the write fails
+	}
+
+	private static final CapacityPolicy UNBOUNDED = new CapacityPolicy(Mode.UNBOUNDED, 0, 0);
+
+	final Mode mode;
+
+	final long maxPages;
+
+	final long maxBytes;
+
+
+	private CapacityPolicy(Mode mode, long maxPages, long maxBytes) {
+		this.mode = mode;
+		this.maxPages = maxPages;
+		this.maxBytes = maxBytes;
+	}
+
+	public static CapacityPolicy unbounded() {
+		return UNBOUNDED;
+	}
+
+	public static CapacityPolicy block(long maxPages, long maxBytes) {
+		return new CapacityPolicy(Mode.BLOCK, check(maxPages), check(maxBytes));
+	}
+
+	public static CapacityPolicy dropOldest(long maxPages, long maxBytes) {
+		return new CapacityPolicy(Mode.DROP_OLDEST, check(maxPages), check(maxBytes));
+	}
+
+	public static CapacityPolicy fail(long maxPages, long maxBytes) {
+		return new CapacityPolicy(Mode.FAIL, check(maxPages), check(maxBytes));
+	}
+
+	// true if the pages and bytes are over the limit
+	boolean exceeds(long pages, long bytes) {
+		return (maxPages > 0 && pages > maxPages) || (maxBytes > 0 && bytes > maxBytes);
+	}
+
+	private static long check(long limit) {
+		if (limit < 0) {
+			throw new CacheException("capacity limit must not be negative: " + limit);
+		}
+		return limit;
+	}
+
+	@Override
+	public String toString() {
+		return mode + (mode != Mode.UNBOUNDED ? "(" + maxPages + " pages, " + maxBytes + " bytes)" : "");
+	}
+
+}
@@ -0,0 +1,14 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * callback for IReadStream.readBatch(), the chunk is the range [offset, offset + length)
+ * of the page buffer, use absolute gets since the buffer is shared by all callbacks of a page
+ * and is only valid until the callback returns
+ */
+public interface ChunkHandler {
+
+	void onChunk(ByteBuffer page, int offset, int length);
+
+}
@@ -0,0 +1,306 @@
+package buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * publishes the chunks of a read stream to a single subscriber, request(n) reads up to n committed
+ * chunks on the executor without waiting, a subscription that runs out of chunks is handed to a
+ * shared poller that runs it again when the writer of the buffer publishes or after a while for
+ * writers in other buffers or processes, so many spools can be consumed by a few threads, the writer
+ * and its producers only flag the subscription and wake the poller, the executor and the subscriber
+ * never run on them, each chunk is a copy, the spool has no end so onComplete() is never called,
+ * needs java 9, nothing else in the package loads this class
+ */
+public class ChunkPublisher implements Flow.Publisher<ByteBuffer> {
+
+	// chunks read per poll, the subscription gives the executor back after each batch
+	private static final int BATCH = 64;
+
+	private final Buffer buffer;
+	private final IReadStream stream;
+	private final Executor executor;
+
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+
+	// the publisher closes the stream when the subscription ends
+	public ChunkPublisher(Buffer buffer, IReadStream stream, Executor executor) {
+		this.buffer = buffer;
+		this.stream = stream;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("a read stream has only one subscriber"));
+			return;
+		}
+		ChunkSubscription subscription = new ChunkSubscription(subscriber);
+		buffer.addPublishListener(subscription.listener);
+		subscriber.onSubscribe(subscription);
+	}
+
+
+	private class ChunkSubscription implements Flow.Subscription, Runnable, ChunkHandler {
+
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+		private final AtomicLong demand = new AtomicLong();
+		// number of times the subscription was scheduled while it ran, only one run at a time
+		private final AtomicInteger pending = new AtomicInteger();
+
+		private volatile boolean cancelled;
+		private volatile Throwable failure;
+		private volatile boolean done;
+
+		// set when a run ended without chunks while there was demand
+		private volatile boolean idle;
+		// the writer published since the subscription became idle
+		private volatile boolean woken;
+		// consecutive runs without chunks, the poller backs off with it
+		private volatile int idlePolls;
+
+		// runs on the writer thread or a producer on every publish
+		private final Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				if (idle && !woken) {
+					woken = true;
+					IdlePoller.wake();
+				}
+			}
+		};
+
+
+		ChunkSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancelled = true;
+				schedule(new IllegalArgumentException("request must be positive: " + n));
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = demand.get();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			} while (!demand.compareAndSet(current, next));
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		@Override
+		public void onChunk(ByteBuffer page, int offset, int length) {
+			ByteBuffer chunk = ByteBuffer.allocate(length);
+			ByteBuffer source = page.duplicate();
+			source.limit(offset + length).position(offset);
+			chunk.put(source);
+			chunk.flip();
+			subscriber.onNext(chunk);
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			while (true) {
+				poll();
+				missed = pending.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		private void poll() {
+			if (done) {
+				return;
+			}
+			boolean rechecked = false;
+			while (!cancelled) {
+				long requested = demand.get();
+				long delivered = 0;
+				try {
+					while (delivered < requested && !cancelled) {
+						int count = stream.pollBatch(this, (int) Math.min(requested - delivered, BATCH));
+						if (count == 0) {
+							break;
+						}
+						delivered += count;
+					}
+				} catch (RuntimeException ex) {
+					finish(ex);
+					return;
+				}
+				if (requested != Long.MAX_VALUE) {
+					demand.addAndGet(-delivered);
+				}
+				if (delivered > 0) {
+					idlePolls = 0;
+				}
+				if (delivered == requested) {
+					idle = false;
+					return;
+				}
+				if (rechecked) {
+					// out of chunks, the writer or the poller runs us again
+					if (delivered == 0) {
+						idlePolls++;
+					}
+					IdlePoller.add(this);
+					return;
+				}
+				// a publish after this runs us again, one more look catches a publish before it
+				woken = false;
+				idle = true;
+				rechecked = true;
+			}
+			finish(null);
+		}
+
+		// ends the subscription on the executor, the error goes to the subscriber
+		private void schedule(Throwable error) {
+			failure = error;
+			schedule();
+		}
+
+		private void schedule() {
+			if (pending.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				} catch (RuntimeException ex) {
+					pending.set(0);
+					cancelled = true;
+					finish(ex);
+				}
+			}
+		}
+
+		private void finish(Throwable error) {
+			done = true;
+			buffer.removePublishListener(listener);
+			try {
+				stream.close();
+			} catch (IOException | RuntimeException ex) {
+				error = error != null ? error : ex;
+			}
+			if (failure != null) {
+				error = failure;
+			}
+			if (error != null) {
+				subscriber.onError(error);
+			}
+		}
+
+		// true if the poller should run the subscription in this tick, backs off up to 16 ticks
+		boolean due(long tick) {
+			return (tick & ((1L << Math.min(idlePolls, 4)) - 1)) == 0;
+		}
+
+	}
+
+
+	// runs idle subscriptions again once their writer published, or in case their writer
+	// is in another buffer or process after a tick
+	private static class IdlePoller extends Thread {
+
+		private static final long TICK_NANOS = 1000000L;  // 1ms
+
+		private static final Queue<ChunkSubscription> subscriptions = new ConcurrentLinkedQueue<>();
+
+		private static volatile IdlePoller poller;
+		private static final ReentrantLock startLock = new ReentrantLock();
+
+
+		IdlePoller() {
+			this.setName("CachePublisherPoller");
+			this.setDaemon(true);
+		}
+
+		static void add(ChunkSubscription subscription) {
+			subscriptions.add(subscription);
+			ensureStarted();
+			if (subscription.woken) {
+				wake();  // the writer published before the subscription got here
+			}
+		}
+
+		static void wake() {
+			IdlePoller thread = poller;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		private static void ensureStarted() {
+			if (poller != null) {
+				return;
+			}
+			startLock.lock();
+			try {
+				if (poller == null) {
+					IdlePoller thread = new IdlePoller();
+					thread.start();
+					poller = thread;
+				}
+			} finally {
+				startLock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			while (true) {
+				LockSupport.parkNanos(TICK_NANOS);
+				// a wake up doesn't count as a tick
+				long tick = (System.nanoTime() - start) / TICK_NANOS;
+				Iterator<ChunkSubscription> iterator = subscriptions.iterator();
+				while (iterator.hasNext()) {
+					ChunkSubscription subscription = iterator.next();
+					if (!subscription.idle || subscription.done) {
+						iterator.remove();
+					} else if (subscription.woken || subscription.due(tick)) {
+						iterator.remove();
+						subscription.idle = false;
+						subscription.schedule();
+					}
+				}
+			}
+		}
+
+	}
+
+}
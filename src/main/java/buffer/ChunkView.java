@@ -0,0 +1,73 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * reusable flyweight over a chunk in a mapped page, IReadStream.read(ChunkView) only
+ * moves it to the next chunk so the steady state read path doesn't allocate,
+ * the content is valid until the next read on the stream
+ */
+public class ChunkView implements ChunkHandler {
+
+	private ByteBuffer buffer;
+
+	private int offset;
+
+	private int length;
+
+
+	@Override
+	public void onChunk(ByteBuffer page, int offset, int length) {
+		this.buffer = page;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public byte getByte(int index) {
+		checkIndex(index, 1);
+		return buffer.get(offset + index);
+	}
+
+	public short getShort(int index) {
+		checkIndex(index, 2);
+		return buffer.getShort(offset + index);
+	}
+
+	public int getInt(int index) {
+		checkIndex(index, PageMetadata.INT_SIZE);
+		return buffer.getInt(offset + index);
+	}
+
+	public long getLong(int index) {
+		checkIndex(index, 8);
+		return buffer.getLong(offset + index);
+	}
+
+	public void getBytes(int index, byte[] dst, int dstOffset, int count) {
+		checkIndex(index, count);
+		for (int i = 0; i < count; i++) {
+			dst[dstOffset + i] = buffer.get(offset + index + i);
+		}
+	}
+
+	// copies the chunk into dst which needs at least length() bytes remaining
+	public void getBytes(ByteBuffer dst) {
+		for (int i = 0; i < length; i++) {
+			dst.put(buffer.get(offset + i));
+		}
+	}
+
+	private void checkIndex(int index, int size) {
+		if (buffer == null) {
+			throw new CacheException("chunk view is not positioned on a chunk");
+		}
+		if (index < 0 || size < 0 || index + size > length) {
+			throw new IndexOutOfBoundsException("index: " + index + " size: " + size + " length: " + length);
+		}
+	}
+
+}
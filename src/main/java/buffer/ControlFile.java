@@ -0,0 +1,331 @@
+package buffer;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a small mapped file next to the pages that the writer and the readers of all processes share:
+ * who the writer is and when it was last alive, the page and offset it committed last, and a
+ * doorbell for readers in other processes, a reader that wants to sleep puts the loopback port
+ * it listens on into a slot and marks it and the header waiting, the writer bumps the sequence and
+ * only if the header says so sends a datagram to every waiting slot, the positions of the readers
+ * stay in their cursor files
+ */
+class ControlFile {
+
+	static final String CONTROL_FILE = "spool.control";
+
+	// the writer updates the heartbeat in this interval, it counts as dead after the timeout
+	static final long HEARTBEAT_MILLIS = 100;
+	static final long HEARTBEAT_TIMEOUT_MILLIS = 10 * HEARTBEAT_MILLIS;
+
+	static final int SLOT_COUNT = 64;
+	static final int NO_SLOT = -1;
+
+	private static final int WRITER_ID_POS = 0;  // 0 if there is no writer
+	private static final int HEARTBEAT_POS = 8;
+	private static final int PAGE_INDEX_POS = 16;
+	private static final int TAIL_POS = 24;
+	// on its own cache line, the readers poll it while the writer updates the tail
+	private static final int SEQUENCE_POS = 64;
+	private static final int WAITERS_POS = 72;  // not 0 if a slot might be waiting
+	private static final int HEADER_SIZE = 128;
+
+	private static final int PORT_POS = 0;  // 0 if the slot is free
+	private static final int WAITING_POS = 4;
+	private static final int SLOT_SIZE = 8;
+
+	private static final int CONTROL_SIZE = HEADER_SIZE + SLOT_COUNT * SLOT_SIZE;
+
+	private static final long PROCESS_ID = processId();
+
+	// a file lock only keeps other processes out, two threads of this process that lock
+	// the same region get an OverlappingFileLockException instead of waiting
+	private static final ReentrantLock PROCESS_LOCK = new ReentrantLock();
+
+	// atomic add on the mapped sequence is only available since java 9, older versions
+	// take a lock, the producers of the writer are the only ones that bump it
+	private static final MethodHandle GET_AND_ADD = getAndAdd();
+	private final ReentrantLock sequenceLock = new ReentrantLock();
+
+
+	private final File controlFile;
+
+	private final RandomAccessFile rand;
+
+	// stays mapped as long as the buffer lives
+	private final MappedByteBuffer buffer;
+
+	// rings the doorbells, only opened by the writer
+	private volatile DatagramChannel sender;
+	private final ByteBuffer ring = ByteBuffer.allocate(1);
+
+	// set while this buffer is the writer
+	private Heartbeat heartbeat;
+
+
+	// creates the file if it isn't there yet, the writer and the readers might start in any order
+	ControlFile(File cacheDir) {
+		this.controlFile = new File(cacheDir, CONTROL_FILE);
+		try {
+			rand = new RandomAccessFile(controlFile, "rw");
+			if (rand.length() < CONTROL_SIZE) {
+				rand.setLength(CONTROL_SIZE);
+			}
+			buffer = Unmapper.map(rand.getChannel(), READ_WRITE, 0, CONTROL_SIZE);
+		} catch (IOException ex) {
+			throw new CacheException("error mapping control file: '" + controlFile + "'", ex);
+		}
+	}
+
+	long sequence() {
+		return buffer.getLong(SEQUENCE_POS);
+	}
+
+	// the writer committed everything before offset in the page, readers only use it to tell how far
+	// behind they are, with many producers it is the reserved end and chunks before it might still be copied
+	long getPageIndex() {
+		return buffer.getLong(PAGE_INDEX_POS);
+	}
+
+	long getTail() {
+		return buffer.getLong(TAIL_POS);
+	}
+
+	// the writer starts, fails if a writer in this or another process is still alive
+	void openWriter() {
+		FileLock lock = lock(WRITER_ID_POS, 16);  // the writer id and the heartbeat
+		try {
+			long writer = buffer.getLong(WRITER_ID_POS);
+			if (heartbeat != null || (writer != 0 && isWriterAlive())) {
+				throw new CacheException(writer == PROCESS_ID
+						? "the spool already has a writer in this process"
+						: "the spool already has a writer: process " + writer);
+			}
+			if (sender == null) {
+				try {
+					DatagramChannel channel = DatagramChannel.open();
+					channel.configureBlocking(false);  // the writer never waits for a reader
+					sender = channel;
+				} catch (IOException ex) {
+					throw new CacheException("error opening doorbell channel", ex);
+				}
+			}
+			buffer.putLong(HEARTBEAT_POS, System.currentTimeMillis());
+			buffer.putLong(WRITER_ID_POS, PROCESS_ID);
+			heartbeat = new Heartbeat();
+			heartbeat.start();
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	// readers see the writer gone right away instead of after the timeout
+	void closeWriter() {
+		FileLock lock = lock(WRITER_ID_POS, 16);
+		try {
+			if (heartbeat == null) {
+				return;  // another buffer is the writer
+			}
+			heartbeat.terminate();
+			try {
+				heartbeat.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			heartbeat = null;
+			if (buffer.getLong(WRITER_ID_POS) == PROCESS_ID) {
+				buffer.putLong(HEARTBEAT_POS, 0);
+				buffer.putLong(WRITER_ID_POS, 0);
+			}
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	boolean isWriterAlive() {
+		long beat = buffer.getLong(HEARTBEAT_POS);
+		return buffer.getLong(WRITER_ID_POS) != 0
+				&& System.currentTimeMillis() - beat < HEARTBEAT_TIMEOUT_MILLIS;
+	}
+
+	// the writer published chunks up to tail in the page, wakes the readers of the other processes,
+	// producers might call it in parallel, the sequence only goes up but the page and tail of
+	// a producer that is overtaken might land last
+	void publish(long pageIndex, long tail, int ownSlot) {
+		buffer.putLong(PAGE_INDEX_POS, pageIndex);
+		buffer.putLong(TAIL_POS, tail);
+		incrementSequence();
+		if (buffer.getInt(WAITERS_POS) == 0) {
+			return;
+		}
+		// cleared before the scan, a reader that marks itself waiting after it is found next time
+		buffer.putInt(WAITERS_POS, 0);
+		for (int slot = 0; slot < SLOT_COUNT; slot++) {
+			int pos = HEADER_SIZE + slot * SLOT_SIZE;
+			if (slot == ownSlot || buffer.getInt(pos + WAITING_POS) == 0) {
+				continue;
+			}
+			buffer.putInt(pos + WAITING_POS, 0);
+			int port = buffer.getInt(pos + PORT_POS);
+			if (port != 0 && sender != null) {
+				ring(port);
+			}
+		}
+	}
+
+	private void incrementSequence() {
+		if (GET_AND_ADD != null) {
+			try {
+				GET_AND_ADD.invokeExact((ByteBuffer) buffer, SEQUENCE_POS, 1L);
+				return;
+			} catch (Throwable ex) {
+				throw new CacheException("error updating control file: '" + controlFile + "'", ex);
+			}
+		}
+		sequenceLock.lock();
+		try {
+			buffer.putLong(SEQUENCE_POS, buffer.getLong(SEQUENCE_POS) + 1);
+		} finally {
+			sequenceLock.unlock();
+		}
+	}
+
+	// NO_SLOT if all slots are taken, the reader then has to poll, the slot of a process
+	// that is gone is free again since nobody listens on its port any more
+	int claimSlot(int port) {
+		FileLock lock = lock(HEADER_SIZE, SLOT_COUNT * SLOT_SIZE);
+		try {
+			for (int slot = 0; slot < SLOT_COUNT; slot++) {
+				int pos = HEADER_SIZE + slot * SLOT_SIZE;
+				int owner = buffer.getInt(pos + PORT_POS);
+				if (owner == 0 || !isListening(owner)) {
+					buffer.putInt(pos + WAITING_POS, 0);
+					buffer.putInt(pos + PORT_POS, port);
+					return slot;
+				}
+			}
+			return NO_SLOT;
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	// the reader is about to sleep, it has to look at the sequence once more after this
+	void setWaiting(int slot) {
+		buffer.putInt(HEADER_SIZE + slot * SLOT_SIZE + WAITING_POS, 1);
+		buffer.putInt(WAITERS_POS, 1);
+	}
+
+	// keeps out the threads of this process and then the other processes
+	private FileLock lock(long position, long size) {
+		PROCESS_LOCK.lock();
+		try {
+			return rand.getChannel().lock(position, size, false);
+		} catch (IOException ex) {
+			PROCESS_LOCK.unlock();
+			throw new CacheException("error locking control file: '" + controlFile + "'", ex);
+		}
+	}
+
+	private void unlock(FileLock lock) {
+		try {
+			lock.release();
+		} catch (IOException ex) {
+			throw new CacheException("error unlocking control file: '" + controlFile + "'", ex);
+		} finally {
+			PROCESS_LOCK.unlock();
+		}
+	}
+
+	// the port is taken if binding to it fails
+	private static boolean isListening(int port) {
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			probe.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			return false;
+		} catch (IOException ex) {
+			return true;
+		}
+	}
+
+	// a reader that is gone only costs a lost datagram
+	private void ring(int port) {
+		try {
+			// producers might ring in parallel, each sends its own view
+			sender.send(ring.duplicate(), new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		} catch (IOException ex) {
+			// the reader wakes up on its own after its max wait
+		}
+	}
+
+	private static MethodHandle getAndAdd() {
+		try {
+			Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+			Object view = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+					.invoke(null, long[].class, ByteOrder.BIG_ENDIAN);
+			return MethodHandles.publicLookup().findVirtual(varHandle, "getAndAdd",
+					MethodType.methodType(long.class, ByteBuffer.class, int.class, long.class))
+					.bindTo(view)
+					// the previous value is dropped so invokeExact() works as a statement
+					.asType(MethodType.methodType(void.class, ByteBuffer.class, int.class, long.class));
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	// "pid@host" on the usual JVMs, anything else just has to be unique enough
+	private static long processId() {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		try {
+			return Long.parseLong(at > 0 ? name.substring(0, at) : name);
+		} catch (NumberFormatException ex) {
+			return (System.nanoTime() & Long.MAX_VALUE) | 1;
+		}
+	}
+
+
+	// keeps the heartbeat of the writer fresh while the writer doesn't write
+	private class Heartbeat extends Thread {
+
+		private volatile boolean stop = false;
+
+
+		Heartbeat() {
+			this.setName("CacheHeartbeat");
+			this.setDaemon(true);
+		}
+
+		void terminate() {
+			stop = true;
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void run() {
+			while (!stop) {
+				buffer.putLong(HEARTBEAT_POS, System.currentTimeMillis());
+				LockSupport.parkNanos(HEARTBEAT_MILLIS * 1000000L);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,122 @@
+package buffer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C of a range of a buffer, uses java.util.zip.CRC32C where it exists (java 9+) since the JIT
+ * replaces it with the CPU instruction, older versions get a table driven version in plain java
+ */
+class Crc32c {
+
+	private static final int POLYNOMIAL = 0x82F63B78;  // reversed Castagnoli
+
+	private static final int[][] TABLES = tables();
+
+	// constructor and update(ByteBuffer) of the JDK class or null
+	private static final MethodHandle NEW_CRC32C;
+	private static final MethodHandle UPDATE;
+
+	static {
+		MethodHandle newCrc32c = null;
+		MethodHandle update = null;
+		try {
+			Class<?> type = Class.forName("java.util.zip.CRC32C");
+			newCrc32c = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+					.asType(MethodType.methodType(Checksum.class));
+			update = MethodHandles.publicLookup().findVirtual(Checksum.class, "update",
+					MethodType.methodType(void.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException ex) {
+			newCrc32c = null;
+			update = null;
+		}
+		NEW_CRC32C = newCrc32c;
+		UPDATE = update;
+	}
+
+	// one checksum object per thread, the writer and every reader might compute checksums
+	private static final ThreadLocal<Checksum> CHECKSUMS = new ThreadLocal<Checksum>() {
+		@Override
+		protected Checksum initialValue() {
+			try {
+				return NEW_CRC32C == null ? null : (Checksum) NEW_CRC32C.invokeExact();
+			} catch (Throwable ex) {
+				throw new CacheException("error creating CRC32C", ex);
+			}
+		}
+	};
+
+
+	static boolean isIntrinsic() {
+		return NEW_CRC32C != null;
+	}
+
+	// doesn't change the position of the buffer
+	static int checksum(ByteBuffer buffer, int offset, int length) {
+		if (NEW_CRC32C == null) {
+			return checksumJava(buffer, offset, length);
+		}
+		Checksum checksum = CHECKSUMS.get();
+		checksum.reset();
+		ByteBuffer range = buffer.duplicate();
+		range.limit(offset + length).position(offset);
+		try {
+			UPDATE.invokeExact(checksum, range);
+		} catch (Throwable ex) {
+			throw new CacheException("error computing CRC32C", ex);
+		}
+		return (int) checksum.getValue();
+	}
+
+	// the remaining bytes of the buffer
+	static int checksum(ByteBuffer buffer) {
+		return checksum(buffer, buffer.position(), buffer.remaining());
+	}
+
+	// slicing by 8, reads 8 bytes per step with one table per byte
+	static int checksumJava(ByteBuffer buffer, int offset, int length) {
+		int crc = ~0;
+		int index = offset;
+		int end = offset + length;
+		for (; index + 8 <= end; index += 8) {
+			int low = crc
+					^ (buffer.get(index) & 0xFF)
+					^ (buffer.get(index + 1) & 0xFF) << 8
+					^ (buffer.get(index + 2) & 0xFF) << 16
+					^ (buffer.get(index + 3) & 0xFF) << 24;
+			crc = TABLES[7][low & 0xFF]
+					^ TABLES[6][(low >>> 8) & 0xFF]
+					^ TABLES[5][(low >>> 16) & 0xFF]
+					^ TABLES[4][low >>> 24]
+					^ TABLES[3][buffer.get(index + 4) & 0xFF]
+					^ TABLES[2][buffer.get(index + 5) & 0xFF]
+					^ TABLES[1][buffer.get(index + 6) & 0xFF]
+					^ TABLES[0][buffer.get(index + 7) & 0xFF];
+		}
+		for (; index < end; index++) {
+			crc = (crc >>> 8) ^ TABLES[0][(crc ^ buffer.get(index)) & 0xFF];
+		}
+		return ~crc;
+	}
+
+	private static int[][] tables() {
+		int[][] tables = new int[8][256];
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			tables[0][i] = crc;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < 8; t++) {
+				tables[t][i] = (tables[t - 1][i] >>> 8) ^ tables[0][tables[t - 1][i] & 0xFF];
+			}
+		}
+		return tables;
+	}
+
+}
@@ -0,0 +1,28 @@
+package buffer;
+
+/**
+ * a reader fell behind and the writer dropped pages it didn't read yet,
+ * the stream continues with the oldest page that is still available
+ */
+public class DataLostException extends CacheException {
+	private static final long serialVersionUID = 1;
+
+	private final long firstLostPage;
+
+	private final long lastLostPage;
+
+	public DataLostException(long firstLostPage, long lastLostPage) {
+		super("pages " + firstLostPage + " to " + lastLostPage + " were dropped before they were read");
+		this.firstLostPage = firstLostPage;
+		this.lastLostPage = lastLostPage;
+	}
+
+	public long getFirstLostPage() {
+		return firstLostPage;
+	}
+
+	public long getLastLostPage() {
+		return lastLostPage;
+	}
+
+}
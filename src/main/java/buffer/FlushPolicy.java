@@ -0,0 +1,67 @@
+package buffer;
+
+/**
+ * when the writer syncs the written part of a page to disk,
+ * anything that isn't synced is left to the OS writeback and might be lost if the host crashes
+ */
+public class FlushPolicy {
+
+	enum Mode {
+		NEVER,          // OS writeback only
+		ON_PAGE_CLOSE,  // sync a page when it is full or closed
+		EVERY_BYTES,    // sync after at least interval bytes have been written
+		EVERY_MILLIS,   // a background thread syncs the current page every interval ms
+		EVERY_WRITE     // sync each write before it returns
+	}
+
+	private static final FlushPolicy NEVER = new FlushPolicy(Mode.NEVER, 0);
+	private static final FlushPolicy ON_PAGE_CLOSE = new FlushPolicy(Mode.ON_PAGE_CLOSE, 0);
+	private static final FlushPolicy EVERY_WRITE = new FlushPolicy(Mode.EVERY_WRITE, 0);
+
+	final Mode mode;
+
+	final long interval;
+
+
+	private FlushPolicy(Mode mode, long interval) {
+		this.mode = mode;
+		this.interval = interval;
+	}
+
+	public static FlushPolicy never() {
+		return NEVER;
+	}
+
+	public static FlushPolicy onPageClose() {
+		return ON_PAGE_CLOSE;
+	}
+
+	public static FlushPolicy everyBytes(long bytes) {
+		if (bytes <= 0) {
+			throw new CacheException("flush interval must be positive: " + bytes);
+		}
+		return new FlushPolicy(Mode.EVERY_BYTES, bytes);
+	}
+
+	public static FlushPolicy everyMillis(long millis) {
+		if (millis <= 0) {
+			throw new CacheException("flush interval must be positive: " + millis);
+		}
+		return new FlushPolicy(Mode.EVERY_MILLIS, millis);
+	}
+
+	public static FlushPolicy everyWrite() {
+		return EVERY_WRITE;
+	}
+
+	// metadata and the final EOF are synced for every mode except NEVER
+	boolean syncOnClose() {
+		return mode != Mode.NEVER;
+	}
+
+	@Override
+	public String toString() {
+		return mode + (interval > 0 ? "(" + interval + ")" : "");
+	}
+
+}
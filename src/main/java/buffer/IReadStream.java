@@ -7,4 +7,15 @@ public interface IReadStream extends Closeable {
 
 	ByteBuffer read() throws InterruptedException ;
 
+	// hands up to maxChunks committed chunks to the handler without slicing them,
+	// blocks till at least one chunk is available and returns the number of chunks
+	int readBatch(ChunkHandler handler, int maxChunks) throws InterruptedException ;
+
+	// like readBatch() but returns 0 instead of waiting for the writer,
+	// only a chunk that spans pages is waited for once its first piece is there
+	int pollBatch(ChunkHandler handler, int maxChunks);
+
+	// moves the view to the next chunk, blocks like read() but doesn't allocate
+	void read(ChunkView view) throws InterruptedException ;
+
 }
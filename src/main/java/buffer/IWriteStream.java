@@ -7,5 +7,15 @@ import java.nio.ByteBuffer;
 public interface IWriteStream extends Closeable {
 	
 	void write(long timestamp, ByteBuffer buffer);
+
+	// the batch is published with a single commit if it fits into a page,
+	// otherwise it is split over as few pages as possible
+	void writeBatch(long timestamp, ByteBuffer[] buffers);
+
+	void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length);
+
+	// makes everything written so far visible to readers and syncs it to disk,
+	// needed for compressed pages where chunks are only visible once their block is written
+	void flush();
 	
 }
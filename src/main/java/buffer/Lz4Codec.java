@@ -0,0 +1,167 @@
+package buffer;
+
+import java.util.Arrays;
+
+/**
+ * block compression in the LZ4 block format, greedy matching with a single hash table,
+ * it trades some ratio for speed like the reference fast mode,
+ * an instance keeps the hash table between calls and must not be shared by threads
+ */
+class Lz4Codec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;   // the block ends with at least this many literals
+	private static final int MF_LIMIT = 12;       // no match starts closer to the end
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_LOG = 12;
+
+	private final int[] hashTable = new int[1 << HASH_LOG];
+
+
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	// returns the compressed length, dest needs maxCompressedLength(length) bytes
+	int compress(byte[] src, int srcOff, int length, byte[] dest, int destOff) {
+		final int end = srcOff + length;
+		final int matchLimit = end - LAST_LITERALS;
+		final int mfLimit = end - MF_LIMIT;
+		int ip = srcOff;
+		int anchor = srcOff;
+		int op = destOff;
+
+		if (length > MF_LIMIT) {
+			Arrays.fill(hashTable, -1);
+			ip++;
+			while (ip < mfLimit) {
+				int sequence = readInt(src, ip);
+				int hash = hash(sequence);
+				int ref = hashTable[hash];
+				hashTable[hash] = ip;
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					ip++;
+					continue;
+				}
+				// extend the match backwards into the pending literals
+				while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+					matchLength++;
+				}
+
+				int token = op++;
+				int literals = ip - anchor;
+				op = writeLiterals(src, anchor, literals, dest, token, op);
+				int offset = ip - ref;
+				dest[op++] = (byte) offset;
+				dest[op++] = (byte) (offset >>> 8);
+				int extra = matchLength - MIN_MATCH;
+				if (extra >= 15) {
+					dest[token] |= 0x0F;
+					op = writeLength(extra - 15, dest, op);
+				} else {
+					dest[token] |= extra;
+				}
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		int token = op++;
+		op = writeLiterals(src, anchor, end - anchor, dest, token, op);
+		return op - destOff;
+	}
+
+	// fails if the block doesn't decompress to exactly length bytes
+	static void decompress(byte[] src, int srcOff, int srcLength, byte[] dest, int destOff, int length) {
+		final int end = srcOff + srcLength;
+		final int destEnd = destOff + length;
+		int ip = srcOff;
+		int op = destOff;
+		try {
+			while (ip < end) {
+				int token = src[ip++] & 0xFF;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						literals += b;
+					} while (b == 255);
+				}
+				if (ip + literals > end || op + literals > destEnd) {
+					throw new CacheException("corrupt compressed block, literals out of bounds");
+				}
+				System.arraycopy(src, ip, dest, op, literals);
+				ip += literals;
+				op += literals;
+				if (ip >= end) {
+					break;  // the last sequence has no match
+				}
+
+				int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+				int ref = op - offset;
+				if (offset == 0 || ref < destOff) {
+					throw new CacheException("corrupt compressed block, offset out of bounds");
+				}
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+				if (op + matchLength > destEnd) {
+					throw new CacheException("corrupt compressed block, match out of bounds");
+				}
+				// the ranges may overlap
+				for (int i = 0; i < matchLength; i++) {
+					dest[op++] = dest[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			throw new CacheException("corrupt compressed block", ex);
+		}
+		if (op != destEnd) {
+			throw new CacheException("corrupt compressed block, expected " + length + " bytes but got " + (op - destOff));
+		}
+	}
+
+	private static int writeLiterals(byte[] src, int srcOff, int literals, byte[] dest, int token, int op) {
+		if (literals >= 15) {
+			dest[token] = (byte) 0xF0;
+			op = writeLength(literals - 15, dest, op);
+		} else {
+			dest[token] = (byte) (literals << 4);
+		}
+		System.arraycopy(src, srcOff, dest, op, literals);
+		return op + literals;
+	}
+
+	private static int writeLength(int length, byte[] dest, int op) {
+		while (length >= 255) {
+			dest[op++] = (byte) 255;
+			length -= 255;
+		}
+		dest[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] src, int index) {
+		return (src[index] & 0xFF)
+				| (src[index + 1] & 0xFF) << 8
+				| (src[index + 2] & 0xFF) << 16
+				| (src[index + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+}
@@ -0,0 +1,134 @@
+package buffer;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * a small mapped file next to the pages where the writer lists every page it creates,
+ * readers in this or another process poll the sequence number in the header to find new pages
+ * instead of waiting for file system events, the entries are a ring so a reader that falls
+ * behind more than CAPACITY pages has to scan the cache dir
+ */
+class PageDirectory {
+
+	static final String DIRECTORY_FILE = "pages.directory";
+
+	// states of a page entry
+	static final int CREATED = 1;
+	static final int SEALED = 2;
+	static final int DROPPED = 3;  // deleted by the writer, listed as a new entry
+
+	static final int CAPACITY = 1024;
+
+	// number of entries ever written, the next entry goes to slot SEQUENCE % CAPACITY
+	private static final int SEQUENCE_POS = 0;
+	private static final int HEADER_SIZE = 64;
+
+	private static final int PAGE_INDEX_POS = 0;
+	private static final int TIMESTAMP_POS = 8;
+	private static final int FILE_SIZE_POS = 16;
+	private static final int STATE_POS = 24;
+	private static final int ENTRY_SIZE = 32;
+
+	private static final int DIRECTORY_SIZE = HEADER_SIZE + CAPACITY * ENTRY_SIZE;
+
+
+	private final File directoryFile;
+
+	private volatile MappedByteBuffer buffer;
+
+
+	// creates the file if it isn't there yet, the writer and the readers might start in any order
+	PageDirectory(File cacheDir) {
+		this.directoryFile = new File(cacheDir, DIRECTORY_FILE);
+		try (RandomAccessFile rand = new RandomAccessFile(directoryFile, "rw");
+				FileChannel channel = rand.getChannel()) {
+			if (rand.length() < DIRECTORY_SIZE) {
+				rand.setLength(DIRECTORY_SIZE);
+			}
+			buffer = Unmapper.map(channel, READ_WRITE, 0, DIRECTORY_SIZE);
+		} catch (IOException ex) {
+			throw new CacheException("error mapping page directory: '" + directoryFile + "'", ex);
+		}
+	}
+
+	long sequence() {
+		return buffer.getLong(SEQUENCE_POS);
+	}
+
+	// only the writer appends, the entry is visible to readers with the new sequence
+	void append(long pageIndex, long timestamp, long fileSize) {
+		long sequence = sequence();
+		int entry = entry(sequence);
+		buffer.putLong(entry + PAGE_INDEX_POS, pageIndex);
+		buffer.putLong(entry + TIMESTAMP_POS, timestamp);
+		buffer.putLong(entry + FILE_SIZE_POS, fileSize);
+		buffer.putInt(entry + STATE_POS, CREATED);
+		buffer.putLong(SEQUENCE_POS, sequence + 1);
+	}
+
+	// the writer deleted the page to make room, readers need to forget it
+	void drop(long pageIndex) {
+		long sequence = sequence();
+		int entry = entry(sequence);
+		buffer.putLong(entry + PAGE_INDEX_POS, pageIndex);
+		buffer.putLong(entry + TIMESTAMP_POS, 0);
+		buffer.putLong(entry + FILE_SIZE_POS, 0);
+		buffer.putInt(entry + STATE_POS, DROPPED);
+		buffer.putLong(SEQUENCE_POS, sequence + 1);
+	}
+
+	// the writer is done with the page, nothing happens if the entry is no longer in the ring
+	void seal(long pageIndex) {
+		long sequence = sequence();
+		for (long i = sequence - 1; i >= 0 && i >= sequence - CAPACITY; i--) {
+			int entry = entry(i);
+			if (buffer.getLong(entry + PAGE_INDEX_POS) == pageIndex) {
+				buffer.putInt(entry + STATE_POS, SEALED);
+				return;
+			}
+		}
+	}
+
+	// false if the entry was already overwritten, the values read before need to be dropped then,
+	// the writer overwrites slot sequence() % CAPACITY before it bumps the sequence, so the entry
+	// CAPACITY behind the sequence might be torn already
+	boolean isAvailable(long sequence) {
+		long end = sequence();
+		return sequence >= 0 && sequence < end && end - sequence < CAPACITY;
+	}
+
+	long getPageIndex(long sequence) {
+		return buffer.getLong(entry(sequence) + PAGE_INDEX_POS);
+	}
+
+	long getTimestamp(long sequence) {
+		return buffer.getLong(entry(sequence) + TIMESTAMP_POS);
+	}
+
+	long getFileSize(long sequence) {
+		return buffer.getLong(entry(sequence) + FILE_SIZE_POS);
+	}
+
+	int getState(long sequence) {
+		return buffer.getInt(entry(sequence) + STATE_POS);
+	}
+
+	void close() {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null) {
+			buffer = null;
+			Unmapper.retire(mapped);
+		}
+	}
+
+	private static int entry(long sequence) {
+		return HEADER_SIZE + (int) (sequence % CAPACITY) * ENTRY_SIZE;
+	}
+
+}
@@ -1,7 +1,5 @@
 package buffer;
 
-import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 
 public class PageMetadata {
@@ -10,6 +8,23 @@ public class PageMetadata {
 
     static final int EOF = Integer.MIN_VALUE;
     
+    // layout of the chunks in a page, the flags can be combined
+    static final int PLAIN_CHUNKS = 0;       // [int size][payload]
+    static final int TIMESTAMPED_CHUNKS = 1; // [int size][int timestamp delta to the page][payload]
+    static final int CHECKSUMMED_CHUNKS = 2; // [int size][...][int CRC32C of the payload][payload]
+
+    // flags in the size of the pieces of a chunk that doesn't fit into a page, readers join the pieces
+    static final int MORE_FRAGMENTS = 1 << 30;  // the next piece belongs to the same chunk
+    static final int CONTINUATION = 1 << 29;    // the piece continues the chunk of the previous one
+    static final int FRAGMENT_FLAGS = MORE_FRAGMENTS | CONTINUATION;
+    static final int MAX_CHUNK_SIZE = CONTINUATION - 1;  // bigger chunks always go in pieces
+
+    // compression of the chunks in a page
+    static final int NO_CODEC = 0;
+    static final int LZ4_CODEC = 1;  // [int compressed size][int size][lz4 block of chunks]
+
+    static final int VERSION_POS = 0;
+    static final int CODEC_POS = 4;
     static final int FILE_SIZE_POS = 8;
     static final int TIMESTAMP_POS = 16;
     static final int PAGE_INDEX_POS = 24;
@@ -24,6 +39,10 @@ public class PageMetadata {
 	private long timestamp;
 
 	private long pageIndex;
+
+	private int version = PLAIN_CHUNKS;
+
+	private int codec = NO_CODEC;
 	
 	
 	public void read(MappedByteBuffer readBuffer) {
@@ -35,15 +54,24 @@ public class PageMetadata {
 	}
 
 	public void force() {
+		store(true);
+	}
+
+	// write the metadata, sync is optional since other processes see the mapped data anyway
+	void store(boolean sync) {
+		buffer.putInt(VERSION_POS, version);
+		buffer.putInt(CODEC_POS, codec);
 		buffer.putLong(FILE_SIZE_POS, fileSize);
 		buffer.putLong(TIMESTAMP_POS, timestamp);
 		buffer.putLong(PAGE_INDEX_POS, pageIndex);
 		buffer.putInt(METADATA_SIZE, 0); // first chunk size
-		buffer.force();
+		if (sync) {
+			buffer.force();
+		}
 	}
 
 	public void close() {
-        PageMetadata.Cleaner.clean(buffer);
+        Unmapper.retire(buffer);
         buffer = null;
 	}
 
@@ -70,46 +98,49 @@ public class PageMetadata {
 	public long getPageIndex() {
 		return buffer.getLong(PAGE_INDEX_POS);
 	}
-	
-	// run a cleaner on the ByteBuffer, this seems to be common practice...
-    // see: http://stackoverflow.com/questions/1854398/how-to-garbage-collect-a-direct-buffer-java
-    //      https://github.com/bulldog2011/bigqueue/blob/master/src/main/java/com/leansoft/bigqueue/page/MappedPageImpl.java
-    static class Cleaner {
-        private static final boolean CLEAN_SUPPORTED;
-        private static final Method directBufferCleaner;
-        private static final Method directBufferCleanerClean;
-
-        static {
-            Method directBufferCleanerX = null;
-            Method directBufferCleanerCleanX = null;
-            boolean v;
-            try {
-                directBufferCleanerX = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
-                directBufferCleanerX.setAccessible(true);
-                directBufferCleanerCleanX = Class.forName("sun.misc.Cleaner").getMethod("clean");
-                directBufferCleanerCleanX.setAccessible(true);
-                v = true;
-            } catch (Exception ex) {
-                v = false;
-            }
-            directBufferCleaner = directBufferCleanerX;
-            directBufferCleanerClean = directBufferCleanerCleanX;
-            CLEAN_SUPPORTED = v && directBufferCleaner != null && directBufferCleanerClean != null;
-        }
-
-        public static void clean(ByteBuffer buffer) {
-            if (CLEAN_SUPPORTED && buffer.isDirect()) {
-                try {
-                    Object cleaner = directBufferCleaner.invoke(buffer);
-                    if (cleaner != null) {
-                        directBufferCleanerClean.invoke(cleaner);
-                    }
-                } catch (Exception ex) {
-                    ex.printStackTrace();
-                }
-            }
-            System.gc();
-        }
-    }
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
+	public int getVersion() {
+		return buffer.getInt(VERSION_POS);
+	}
+
+	public void setCodec(int codec) {
+		this.codec = codec;
+	}
+
+	public int getCodec() {
+		return buffer.getInt(CODEC_POS);
+	}
+
+	static void checkCodec(int codec) {
+		if (codec != NO_CODEC && codec != LZ4_CODEC) {
+			throw new CacheException("unknown page codec: " + codec);
+		}
+	}
+
+	static int version(boolean timestamps, boolean checksums) {
+		return (timestamps ? TIMESTAMPED_CHUNKS : PLAIN_CHUNKS) | (checksums ? CHECKSUMMED_CHUNKS : PLAIN_CHUNKS);
+	}
+
+	static boolean hasTimestamps(int version) {
+		return (version & TIMESTAMPED_CHUNKS) != 0;
+	}
+
+	static boolean hasChecksums(int version) {
+		return (version & CHECKSUMMED_CHUNKS) != 0;
+	}
+
+	// bytes in front of the payload of each chunk, the checksum is right in front of the payload
+	static int headerSize(int version) {
+		if ((version & ~(TIMESTAMPED_CHUNKS | CHECKSUMMED_CHUNKS)) != 0) {
+			throw new CacheException("unknown page version: " + version);
+		}
+		return INT_SIZE
+				+ (hasTimestamps(version) ? INT_SIZE : 0)
+				+ (hasChecksums(version) ? INT_SIZE : 0);
+	}
 
 }
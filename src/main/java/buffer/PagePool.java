@@ -0,0 +1,179 @@
+package buffer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * keeps a number of pages created, sized and mapped ahead of time so a page rollover
+ * doesn't have to create and map a file, deleted pages are recycled instead of
+ * being unlinked and created again
+ */
+class PagePool {
+
+	static final String POOL_PREFIX = "pool-";
+	private static final String POOL_POSTFIX = ".tmp";
+
+	private final File cacheDir;
+
+	private final long fileSize;
+
+	private final boolean touch;
+
+	private final FlushPolicy flushPolicy;
+
+	private final BlockingQueue<WritePage> ready;
+
+	private final BlockingQueue<File> recycled;
+
+	private final AtomicLong fileCounter = new AtomicLong();
+
+	private PagePreparer pagePreparer;
+
+	private volatile boolean running;
+
+	private volatile boolean closed;
+
+
+	PagePool(File cacheDir, long fileSize, int size, boolean touch, FlushPolicy flushPolicy) {
+		this.cacheDir = cacheDir;
+		this.flushPolicy = flushPolicy;
+		this.fileSize = fileSize;
+		this.touch = touch;
+		this.ready = new ArrayBlockingQueue<>(size);
+		this.recycled = new ArrayBlockingQueue<>(size);
+	}
+
+	void start() {
+		// leftovers from the last run can be reused
+		final File[] files = cacheDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(POOL_PREFIX) && name.endsWith(POOL_POSTFIX);
+			}
+		});
+		if (files != null) {
+			for (File file : files) {
+				if (!recycle(file)) {
+					file.delete();
+				}
+			}
+		}
+		running = true;
+		pagePreparer = new PagePreparer();
+		pagePreparer.start();
+	}
+
+	// an unused page without timestamp and index, if the pool is empty the calling thread creates
+	// a fresh sparse file, clearing a recycled page or touching the memory is left to the pool thread
+	WritePage take() {
+		WritePage page = ready.poll();
+		if (page == null) {
+			page = new WritePage(nextPoolFile(), fileSize, flushPolicy).open();
+		}
+		return page;
+	}
+
+	// returns false if the file can't be reused, the caller should delete it then
+	boolean recycle(File file) {
+		if (closed) {
+			return false;
+		}
+		if (file.length() != fileSize || recycled.remainingCapacity() == 0) {
+			return false;
+		}
+		File poolFile = nextPoolFile();
+		if (!file.renameTo(poolFile)) {
+			return false;
+		}
+		if (!recycled.offer(poolFile)) {
+			poolFile.delete();
+		}
+		return true;
+	}
+
+	void close() {
+		closed = true;
+		running = false;
+		if (pagePreparer != null) {
+			pagePreparer.interrupt();
+			try {
+				pagePreparer.join();
+			} catch (InterruptedException ex) {
+				throw new CacheException(ex);
+			}
+		}
+		WritePage page;
+		while ((page = ready.poll()) != null) {
+			page.discard();
+		}
+		File file;
+		while ((file = recycled.poll()) != null) {
+			file.delete();
+		}
+	}
+
+	// only called by the pool thread, clearing a recycled page takes as long as writing it
+	private WritePage prepare() {
+		File file = recycled.poll();
+		if (file != null) {
+			return new WritePage(file, fileSize, flushPolicy).open().clear();
+		}
+		WritePage page = new WritePage(nextPoolFile(), fileSize, flushPolicy).open();
+		if (touch) {
+			page.touch();
+		}
+		return page;
+	}
+
+	private File nextPoolFile() {
+		File file;
+		do {
+			file = new File(cacheDir, POOL_PREFIX + fileCounter.incrementAndGet() + POOL_POSTFIX);
+		} while (file.exists());
+		return file;
+	}
+
+	private class PagePreparer extends Thread {
+
+		PagePreparer() {
+			this.setName("CachePagePreparer");
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				WritePage page = null;
+				try {
+					page = prepare();
+					while (!ready.offer(page, 100, TimeUnit.MILLISECONDS)) {
+						if (!running) {
+							return;  // page is discarded below
+						}
+					}
+					page = null;
+				} catch (InterruptedException ex) {
+					// closing
+				} catch (CacheException ex) {
+					// the writer prepares its pages itself for now
+					ex.printStackTrace();
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException iex) {
+						// closing
+					}
+				} finally {
+					if (page != null) {
+						page.discard();
+					}
+				}
+			}
+		}
+
+	}
+
+}
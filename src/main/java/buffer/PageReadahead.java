@@ -0,0 +1,162 @@
+package buffer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * faults in the pages ahead of the readers in a background thread, so a reader that replays
+ * old data finds them in the page cache instead of waiting for the disk on every page fault,
+ * each reader gets at most the next pages that fit into the byte budget, the page the writer
+ * is still writing isn't touched
+ */
+class PageReadahead {
+
+	private final ReadPageFactory readPageFactory;
+
+	private final int pages;
+
+	private final long maxBytes;
+
+	private final BlockingQueue<Window> requests = new LinkedBlockingQueue<>();
+
+	// guards the prefetcher and the users
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private Prefetcher prefetcher;
+
+	// number of open windows, the thread runs while there are any
+	private int users;
+
+	private BufferMetrics metrics;
+
+
+	PageReadahead(ReadPageFactory readPageFactory, int pages, long maxBytes) {
+		this.readPageFactory = readPageFactory;
+		this.pages = pages;
+		this.maxBytes = maxBytes;
+	}
+
+	void setMetrics(BufferMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	Window open() {
+		lock.lock();
+		try {
+			if (users++ == 0) {
+				prefetcher = new Prefetcher();
+				prefetcher.start();
+			}
+			return new Window();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void close(Window window) {
+		lock.lock();
+		try {
+			if (window.closed) {
+				return;
+			}
+			window.closed = true;
+			if (--users == 0) {
+				prefetcher.interrupt();
+				prefetcher = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the pages behind the window's page that are complete and fit into the budget
+	private void prefetch(Window window) {
+		long current = window.currentIndex;
+		long bytes = 0;
+		for (long index = current + 1; index <= current + pages && !window.closed; index++) {
+			ReadPage page = readPageFactory.pollCompletePage(index);
+			if (page == null) {
+				return;
+			}
+			try {
+				bytes += page.getFileSize();
+			} catch (CacheException ex) {
+				return;  // dropped by the writer
+			}
+			if (bytes > maxBytes) {
+				return;
+			}
+			if (index > window.prefetched && page.prefetch()) {
+				window.prefetched = index;
+				if (metrics != null) {
+					metrics.pagesPrefetched.incrementAndGet();
+				}
+			}
+			if (window.currentIndex != current) {
+				return;  // the reader moved on, it is queued again
+			}
+		}
+	}
+
+	/**
+	 * the pages ahead of one reader
+	 */
+	class Window {
+
+		private volatile long currentIndex;
+
+		// highest page faulted in, only used by the prefetcher
+		private long prefetched = -1;
+
+		private volatile boolean closed;
+
+		private final AtomicBoolean queued = new AtomicBoolean();
+
+		// the reader entered the page, the prefetcher moves the window
+		void enter(long pageIndex) {
+			currentIndex = pageIndex;
+			if (queued.compareAndSet(false, true)) {
+				requests.offer(this);
+			}
+		}
+
+		void close() {
+			PageReadahead.this.close(this);
+		}
+
+	}
+
+	private class Prefetcher extends Thread {
+
+		Prefetcher() {
+			this.setName("CacheReadahead");
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!isInterrupted()) {
+				Window window;
+				try {
+					window = requests.take();
+				} catch (InterruptedException ex) {
+					return;  // closing
+				}
+				window.queued.set(false);
+				if (window.closed) {
+					continue;
+				}
+				try {
+					prefetch(window);
+				} catch (CacheException ex) {
+					// only slows down the reader
+					ex.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,91 @@
+package buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * finds the end of the committed chunks of a page the writer didn't close, a chunk or block
+ * only counts if its size word is set and everything it claims fits into the page,
+ * a compressed block also has to decompress into whole chunks and chunk checksums have to match
+ */
+class PageRecovery {
+
+	// offset of the EOF or of the first chunk that isn't committed, page starts behind the metadata
+	static int committedEnd(ByteBuffer page, int version, boolean compressed) {
+		int headerSize = PageMetadata.headerSize(version);
+		boolean checksums = PageMetadata.hasChecksums(version);
+		int limit = page.capacity() - PageMetadata.INT_SIZE;  // room for the EOF
+		int position = 0;
+		while (position <= limit) {
+			int size = page.getInt(position);
+			if (size == PageMetadata.EOF || size <= 0) {
+				return position;
+			}
+			if (!compressed) {
+				size &= ~PageMetadata.FRAGMENT_FLAGS;
+			}
+			int next = compressed
+					? blockEnd(page, position, size, headerSize, checksums, limit)
+					: chunkEnd(page, position, size, headerSize, checksums, limit);
+			if (next < 0) {
+				return position;
+			}
+			position = next;
+		}
+		return position;
+	}
+
+	// a torn write might have left the size without the payload, only the checksum tells
+	static boolean isIntact(ByteBuffer buffer, int position, int size, int headerSize) {
+		int payload = position + headerSize;
+		return buffer.getInt(payload - PageMetadata.INT_SIZE) == Crc32c.checksum(buffer, payload, size);
+	}
+
+	private static int chunkEnd(ByteBuffer page, int position, int size, int headerSize, boolean checksums, int limit) {
+		long end = (long) position + headerSize + size;
+		if (end > limit || (checksums && !isIntact(page, position, size, headerSize))) {
+			return -1;
+		}
+		return (int) end;
+	}
+
+	private static int blockEnd(ByteBuffer page, int position, int compressedSize, int headerSize,
+			boolean checksums, int limit) {
+		long end = (long) position + WritePage.BLOCK_HEADER_SIZE + compressedSize;
+		if (end > limit) {
+			return -1;
+		}
+		int size = page.getInt(position + PageMetadata.INT_SIZE);
+		// the writer never fills a block with more raw bytes than the page holds
+		if (size <= 0 || size > page.capacity()) {
+			return -1;
+		}
+		byte[] source = new byte[compressedSize];
+		ByteBuffer in = page.duplicate();
+		in.position(position + WritePage.BLOCK_HEADER_SIZE);
+		in.get(source);
+		byte[] raw = new byte[size];
+		try {
+			Lz4Codec.decompress(source, 0, compressedSize, raw, 0, size);
+		} catch (CacheException ex) {
+			return -1;
+		}
+		// the chunks have to fill the block exactly
+		ByteBuffer block = ByteBuffer.wrap(raw);
+		int chunk = 0;
+		while (chunk < size) {
+			if (size - chunk < headerSize) {
+				return -1;
+			}
+			int chunkSize = block.getInt(chunk);
+			if (chunkSize <= 0 || chunkSize > size - chunk - headerSize) {
+				return -1;
+			}
+			if (checksums && !isIntact(block, chunk, chunkSize, headerSize)) {
+				return -1;
+			}
+			chunk += headerSize + chunkSize;
+		}
+		return (int) end;
+	}
+
+}
@@ -0,0 +1,247 @@
+package buffer;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * the pages the readers can see, kept in an immutable snapshot sorted by page index that is
+ * replaced with compare and set on every change, so lookups never lock or wait, changes happen
+ * once per page and copy the arrays, readers that wait for a change park and are all woken by it
+ */
+class PageRegistry {
+
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+	private final Queue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+	// set when no new pages are picked up any more, waiters throw instead of waiting forever
+	private volatile CacheException failure;
+
+
+	Snapshot snapshot() {
+		return snapshot.get();
+	}
+
+	// false if the page is already known
+	boolean register(ReadPage page) {
+		while (true) {
+			Snapshot current = snapshot.get();
+			Snapshot next = current.with(page);
+			if (next == current) {
+				return false;
+			}
+			if (replace(current, next)) {
+				return true;
+			}
+		}
+	}
+
+	// the removed page or null if it wasn't there
+	ReadPage unregister(long pageIndex) {
+		while (true) {
+			Snapshot current = snapshot.get();
+			ReadPage page = current.get(pageIndex);
+			if (page == null) {
+				return null;
+			}
+			if (replace(current, current.without(pageIndex))) {
+				return page;
+			}
+		}
+	}
+
+	// removes the first page if its index is below minIndex, null if there is none,
+	// a page is only returned to one caller
+	ReadPage unregisterFirstBefore(long minIndex) {
+		while (true) {
+			Snapshot current = snapshot.get();
+			if (current.size() == 0 || current.firstIndex() >= minIndex) {
+				return null;
+			}
+			ReadPage page = current.pages[0];
+			if (replace(current, current.without(page.getIndex()))) {
+				return page;
+			}
+		}
+	}
+
+	// parks till the snapshot is no longer the one the caller looked at
+	Snapshot awaitChange(Snapshot seen) throws InterruptedException {
+		Thread thread = Thread.currentThread();
+		waiters.add(thread);
+		try {
+			Snapshot current;
+			while ((current = snapshot.get()) == seen) {
+				checkFailure();
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return current;
+		} finally {
+			waiters.remove(thread);
+		}
+	}
+
+	// wakes all waiters, they and every later wait throw till the failure is cleared with null
+	void fail(CacheException ex) {
+		failure = ex;
+		for (Thread waiter : waiters) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	void checkFailure() {
+		CacheException ex = failure;
+		if (ex != null) {
+			throw new CacheException("new pages are no longer picked up", ex);
+		}
+	}
+
+	private boolean replace(Snapshot current, Snapshot next) {
+		if (!snapshot.compareAndSet(current, next)) {
+			return false;
+		}
+		// a waiter that enqueued after this sees the new snapshot before it parks
+		for (Thread waiter : waiters) {
+			LockSupport.unpark(waiter);
+		}
+		return true;
+	}
+
+	/**
+	 * the pages at one point in time, page indexes and start timestamps both grow with the position
+	 */
+	static final class Snapshot {
+
+		static final Snapshot EMPTY = new Snapshot(new long[0], new long[0], new ReadPage[0]);
+
+		private final long[] indexes;
+		private final long[] timestamps;
+		private final ReadPage[] pages;
+
+
+		private Snapshot(long[] indexes, long[] timestamps, ReadPage[] pages) {
+			this.indexes = indexes;
+			this.timestamps = timestamps;
+			this.pages = pages;
+		}
+
+		int size() {
+			return pages.length;
+		}
+
+		// only valid if the snapshot isn't empty
+		long firstIndex() {
+			return indexes[0];
+		}
+
+		long lastIndex() {
+			return indexes[indexes.length - 1];
+		}
+
+		ReadPage first() {
+			return pages[0];
+		}
+
+		ReadPage last() {
+			return pages[pages.length - 1];
+		}
+
+		ReadPage get(long pageIndex) {
+			int pos = position(pageIndex);
+			return pos < 0 ? null : pages[pos];
+		}
+
+		// the last page that starts before the timestamp or null
+		ReadPage lastBefore(long timestamp) {
+			int pos = lowerBound(timestamp) - 1;
+			return pos < 0 ? null : pages[pos];
+		}
+
+		// the first page that starts exactly at the timestamp or null
+		ReadPage firstAt(long timestamp) {
+			int pos = lowerBound(timestamp);
+			return pos < timestamps.length && timestamps[pos] == timestamp ? pages[pos] : null;
+		}
+
+		// this snapshot if the page is already in it
+		Snapshot with(ReadPage page) {
+			long pageIndex = page.getIndex();
+			int pos = position(pageIndex);
+			if (pos >= 0) {
+				return this;
+			}
+			pos = -pos - 1;
+			int size = pages.length;
+			long[] newIndexes = new long[size + 1];
+			long[] newTimestamps = new long[size + 1];
+			ReadPage[] newPages = new ReadPage[size + 1];
+			System.arraycopy(indexes, 0, newIndexes, 0, pos);
+			System.arraycopy(timestamps, 0, newTimestamps, 0, pos);
+			System.arraycopy(pages, 0, newPages, 0, pos);
+			newIndexes[pos] = pageIndex;
+			newTimestamps[pos] = page.getTimestamp();
+			newPages[pos] = page;
+			System.arraycopy(indexes, pos, newIndexes, pos + 1, size - pos);
+			System.arraycopy(timestamps, pos, newTimestamps, pos + 1, size - pos);
+			System.arraycopy(pages, pos, newPages, pos + 1, size - pos);
+			return new Snapshot(newIndexes, newTimestamps, newPages);
+		}
+
+		// this snapshot if the page isn't in it
+		Snapshot without(long pageIndex) {
+			int pos = position(pageIndex);
+			if (pos < 0) {
+				return this;
+			}
+			int size = pages.length;
+			if (size == 1) {
+				return EMPTY;
+			}
+			long[] newIndexes = new long[size - 1];
+			long[] newTimestamps = new long[size - 1];
+			ReadPage[] newPages = new ReadPage[size - 1];
+			System.arraycopy(indexes, 0, newIndexes, 0, pos);
+			System.arraycopy(timestamps, 0, newTimestamps, 0, pos);
+			System.arraycopy(pages, 0, newPages, 0, pos);
+			System.arraycopy(indexes, pos + 1, newIndexes, pos, size - pos - 1);
+			System.arraycopy(timestamps, pos + 1, newTimestamps, pos, size - pos - 1);
+			System.arraycopy(pages, pos + 1, newPages, pos, size - pos - 1);
+			return new Snapshot(newIndexes, newTimestamps, newPages);
+		}
+
+		// like Arrays.binarySearch(), page indexes are usually without gaps so we try the offset first
+		private int position(long pageIndex) {
+			if (indexes.length == 0) {
+				return -1;
+			}
+			long offset = pageIndex - indexes[0];
+			if (offset >= 0 && offset < indexes.length && indexes[(int) offset] == pageIndex) {
+				return (int) offset;
+			}
+			return Arrays.binarySearch(indexes, pageIndex);
+		}
+
+		// position of the first page that starts at or after the timestamp
+		private int lowerBound(long timestamp) {
+			int low = 0;
+			int high = timestamps.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (timestamps[mid] < timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+	}
+
+}
@@ -0,0 +1,67 @@
+package buffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * spin, then yield, then park with an exponential backoff up to maxParkNanos,
+ * this works without any help from the writer so it is also fine for a writer in another process
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+	private static final int DEFAULT_SPIN_TRIES = 100;
+	private static final int DEFAULT_YIELD_TRIES = 100;
+	private static final long DEFAULT_MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+	private static final long DEFAULT_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final int spinTries;
+	private final int yieldTries;
+	private final long minParkNanos;
+	private final long maxParkNanos;
+
+
+	public ParkingWaitStrategy() {
+		this(DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES, DEFAULT_MIN_PARK_NANOS, DEFAULT_MAX_PARK_NANOS);
+	}
+
+	public ParkingWaitStrategy(int spinTries, int yieldTries, long minParkNanos, long maxParkNanos) {
+		if (minParkNanos <= 0 || maxParkNanos < minParkNanos) {
+			throw new CacheException("invalid park interval: " + minParkNanos + " - " + maxParkNanos);
+		}
+		this.spinTries = spinTries;
+		this.yieldTries = yieldTries;
+		this.minParkNanos = minParkNanos;
+		this.maxParkNanos = maxParkNanos;
+	}
+
+	@Override
+	public long sequence() {
+		return 0;
+	}
+
+	@Override
+	public void waitFor(long sequence, int idleCount) throws InterruptedException {
+		if (idleCount < spinTries) {
+			return;
+		}
+		if (idleCount < spinTries + yieldTries) {
+			Thread.yield();
+			return;
+		}
+		int shift = Math.min(idleCount - spinTries - yieldTries, 62);
+		long nanos = minParkNanos << shift;
+		if (nanos <= 0 || nanos > maxParkNanos) {
+			nanos = maxParkNanos;
+		}
+		LockSupport.parkNanos(this, nanos);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		// readers wake up on their own
+	}
+
+}
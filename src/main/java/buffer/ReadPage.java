@@ -8,20 +8,78 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ReadPage {
 	
 	private File cacheFile;
 
 	private PageMetadata metaData;
+	// the readers and the writer that drops the page might release and map it again in parallel
+	private final ReentrantLock metaDataLock = new ReentrantLock();
 
 	private MappedByteBuffer readBuffer;
 
+	// shared view for the batch read callbacks, the handler can't mess with our position
+	private ByteBuffer view;
+
+	private final long pageIndex;
+	private final long timestamp;
+
+	// shared by all readers of the page
+	private final ChunkIndex chunkIndex;
+
+	// chunk layout of this page, known after open()
+	private int headerSize;
+	private boolean timestamps;
+	private boolean compressed;
+
+	// checksums are only verified if the page has them and the policy asks for it
+	private VerifyPolicy verifyPolicy;
+	private BufferMetrics metrics;
+	private boolean verify;
+
+	// timestamp of the chunk returned by the last read()
+	private long chunkTimestamp;
+
+	// fragment flags of the chunk returned by the last read(), only set for chunks that span pages
+	private int fragmentFlags;
+
+	// compressed pages: the block we read the chunks from, readBuffer is behind it
+	private ByteBuffer block;
+	private ByteBuffer blockView;
+	private int blockOffset;
+	private byte[] scratch;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
 
 	ReadPage(File file) {
 		this.cacheFile = file;
 		this.metaData = new PageMetadata();
 		unlockMetadata();
+		this.pageIndex = metaData.getPageIndex();
+		this.timestamp = metaData.getTimestamp();
+		this.chunkIndex = new ChunkIndex();
+	}
+
+	// a page found in the page directory, the metadata are mapped when they are needed
+	ReadPage(File file, long pageIndex, long timestamp) {
+		this.cacheFile = file;
+		this.pageIndex = pageIndex;
+		this.timestamp = timestamp;
+		this.chunkIndex = new ChunkIndex();
+	}
+
+	// another reader on the same page, shares the file and metadata but reads on its own
+	ReadPage(ReadPage page) {
+		this.cacheFile = page.cacheFile;
+		this.metaData = page.metaData();
+		this.pageIndex = page.pageIndex;
+		this.timestamp = page.timestamp;
+		this.chunkIndex = page.chunkIndex;
 	}
 
 	ReadPage open() {
@@ -33,29 +91,136 @@ public class ReadPage {
 	}
 	
 	long getIndex() {
-		return metaData.getPageIndex();
+		return pageIndex;
+	}
+
+	// false once the page was deleted by a reader or dropped by the writer
+	boolean exists() {
+		File file = cacheFile;
+		return file != null && file.exists();
 	}
 	
 	long getTimestamp() {
-		return metaData.getTimestamp();
+		return timestamp;
+	}
+
+	long getFileSize() {
+		return metaData().getFileSize();
+	}
+
+	// size of the chunk header, known after open()
+	int headerSize() {
+		return headerSize;
+	}
+
+	// only meaningful for pages with chunk timestamps
+	long lastChunkTimestamp() {
+		return chunkTimestamp;
+	}
+
+	// the last read() returned a piece of a chunk that continues with the next piece
+	boolean isFragment() {
+		return (fragmentFlags & PageMetadata.MORE_FRAGMENTS) != 0;
+	}
+
+	// the last read() returned a piece that continues a chunk started before
+	boolean isContinuation() {
+		return (fragmentFlags & PageMetadata.CONTINUATION) != 0;
+	}
+
+	// the next committed chunk is a piece of a chunk that spans pages
+	boolean atFragment() {
+		if (compressed) {
+			return false;
+		}
+		int chunkSize = readBuffer.getInt(readBuffer.position());
+		return chunkSize > 0 && (chunkSize & PageMetadata.FRAGMENT_FLAGS) != 0;
+	}
+
+	// pages without chunk timestamps can only be found by their page timestamp
+	boolean hasChunkTimestamps() {
+		if (readBuffer != null) {
+			return timestamps;
+		}
+		return PageMetadata.hasTimestamps(metaData().getVersion());
+	}
+
+	// needs to be set before open(), corrupt chunks are counted in the metrics if there are any
+	ReadPage verify(VerifyPolicy verifyPolicy, BufferMetrics metrics) {
+		this.verifyPolicy = verifyPolicy;
+		this.metrics = metrics;
+		return this;
+	}
+
+	// offset of the next chunk in this page, in a compressed page
+	// the offset of the block in the upper and the offset in the block in the lower half
+	long position() {
+		if (!compressed) {
+			return readBuffer.position();
+		}
+		if (block == null || !block.hasRemaining()) {
+			return (long) readBuffer.position() << 32;
+		}
+		return (long) blockOffset << 32 | block.position();
+	}
+
+	void position(long position) {
+		if (!compressed) {
+			readBuffer.position((int) position);
+			return;
+		}
+		readBuffer.position((int) (position >>> 32));
+		block = null;
+		if ((int) position > 0) {
+			loadBlock();
+			block.position((int) position);
+		}
 	}
 
     boolean isReadComplete() {
-        readBuffer.mark();
-        int nextLimit = readBuffer.getInt();
-        readBuffer.reset();
-        return nextLimit == PageMetadata.EOF;
+        if (compressed && block != null && block.hasRemaining()) {
+            return false;
+        }
+        return readBuffer.getInt(readBuffer.position()) == PageMetadata.EOF;
     }
     
 	ByteBuffer read() {	
+		if (compressed) {
+			if (!nextBlockChunk()) {
+				return EMPTY;
+			}
+			int start = block.position();
+			int chunkSize = block.getInt();
+			fragmentFlags = 0;
+			if (timestamps) {
+				chunkTimestamp = timestamp + block.getInt(block.position());
+			}
+			block.position(block.position() + headerSize - PageMetadata.INT_SIZE);
+			ByteBuffer result = block.slice();
+			result.limit(chunkSize);
+			block.position(block.position() + chunkSize);
+			if (verify && !isValid(block, start, chunkSize)) {
+				return read();  // skip it
+			}
+			return result;
+		}
 		readBuffer.mark();
         // slice a chunk
         int chunkSize = readBuffer.getInt();
         if (chunkSize == PageMetadata.EOF) {
             chunkSize = 0;
         }
+        fragmentFlags = chunkSize > 0 ? chunkSize & PageMetadata.FRAGMENT_FLAGS : 0;
+        chunkSize &= ~PageMetadata.FRAGMENT_FLAGS;
+        int start = readBuffer.position() - PageMetadata.INT_SIZE;
         if (chunkSize == 0) {
         	readBuffer.reset();
+        } else {
+        	checkSize(start, chunkSize);
+        	if (timestamps) {
+        		chunkTimestamp = timestamp + readBuffer.getInt(readBuffer.position());
+        	}
+        	readBuffer.position(readBuffer.position() + headerSize - PageMetadata.INT_SIZE);
         }
         readBuffer.limit(readBuffer.position() + chunkSize);
         // this will be a zero size slice if we hit EOF or the next buffers length is 0
@@ -64,30 +229,291 @@ public class ReadPage {
         // prepare for the next read
         readBuffer.position(readBuffer.position() + chunkSize);
         readBuffer.limit(readBuffer.capacity());
+        if (chunkSize > 0 && verify && !isValid(readBuffer, start, chunkSize)) {
+        	return read();  // skip it
+        }
         return result;
 	}
 	
+	// walks all committed chunks in one pass without creating slices
+	int read(ChunkHandler handler, int maxChunks) {
+		int count = 0;
+		if (compressed) {
+			while (count < maxChunks && nextBlockChunk()) {
+				int position = block.position();
+				int chunkSize = block.getInt(position);
+				block.position(position + headerSize + chunkSize);
+				if (verify && !isValid(block, position, chunkSize)) {
+					continue;
+				}
+				handler.onChunk(blockView, position + headerSize, chunkSize);
+				count++;
+			}
+			return count;
+		}
+		int position = readBuffer.position();
+		while (count < maxChunks) {
+			int chunkSize = readBuffer.getInt(position);
+			if (chunkSize == 0 || chunkSize == PageMetadata.EOF) {
+				break;
+			}
+			if ((chunkSize & PageMetadata.FRAGMENT_FLAGS) != 0 && chunkSize > 0) {
+				break;  // the stream joins the pieces with read()
+			}
+			checkSize(position, chunkSize);
+			int start = position;
+			position += headerSize + chunkSize;
+			readBuffer.position(position);
+			if (verify && !isValid(readBuffer, start, chunkSize)) {
+				continue;
+			}
+			handler.onChunk(view, start + headerSize, chunkSize);
+			count++;
+		}
+		return count;
+	}
+
+	// skips the committed chunks older than the timestamp, returns false if it runs out of
+	// committed chunks before it finds a newer one, a page without chunk timestamps isn't skipped,
+	// the walk starts at the last indexed chunk before the timestamp and indexes what it passes
+	boolean seek(long timestamp) {
+		if (!timestamps) {
+			return true;
+		}
+		if (compressed) {
+			while (nextBlockChunk()) {
+				int position = block.position();
+				if (this.timestamp + block.getInt(position + PageMetadata.INT_SIZE) >= timestamp) {
+					return true;
+				}
+				block.position(position + headerSize + block.getInt(position));
+			}
+			return false;
+		}
+		int position = Math.max(readBuffer.position(), chunkIndex.before(timestamp));
+		try {
+			while (true) {
+				int chunkSize = readBuffer.getInt(position);
+				if (chunkSize == 0 || chunkSize == PageMetadata.EOF) {
+					return false;
+				}
+				// a chunk that spans pages can only be read from its first piece
+				if ((chunkSize & PageMetadata.CONTINUATION) == 0) {
+					long chunkTimestamp = this.timestamp + readBuffer.getInt(position + PageMetadata.INT_SIZE);
+					if (chunkTimestamp >= timestamp) {
+						return true;
+					}
+					chunkIndex.add(position, chunkTimestamp);
+				}
+				position += headerSize + (chunkSize & ~PageMetadata.FRAGMENT_FLAGS);
+			}
+		} finally {
+			readBuffer.position(position);
+		}
+	}
+
+	// number of indexed chunks, for tests
+	int indexedChunks() {
+		return chunkIndex.entries.get().offsets.length;
+	}
+
 	ReadPage close() {	
 		if (readBuffer == null) {
 			throw new CacheException("error buffer already null");
 		}
-        PageMetadata.Cleaner.clean(readBuffer);
+        Unmapper.retire(readBuffer);
         readBuffer = null;
+        view = null;
+        block = null;
+        blockView = null;
 		return this;
 	}
+
+	// a size that runs over the end of the page can't be a chunk the writer committed
+	private void checkSize(int position, int chunkSize) {
+		if (chunkSize < 0 || (long) position + headerSize + chunkSize > readBuffer.capacity() - PageMetadata.INT_SIZE) {
+			throw new CacheException("corrupt chunk size " + chunkSize + " at offset " + position
+					+ " of page " + pageIndex);
+		}
+	}
+
+	// false if the chunk is corrupt and the policy skips it
+	private boolean isValid(ByteBuffer buffer, int position, int chunkSize) {
+		if (PageRecovery.isIntact(buffer, position, chunkSize, headerSize)) {
+			return true;
+		}
+		if (metrics != null) {
+			metrics.corruptChunks.incrementAndGet();
+		}
+		if (verifyPolicy.mode == VerifyPolicy.Mode.FAIL) {
+			throw new CacheException("checksum mismatch of the chunk at offset " + position
+					+ " of page " + pageIndex);
+		}
+		return false;
+	}
+
+	// false if the current block is done and the next one isn't committed yet
+	private boolean nextBlockChunk() {
+		if (block != null && block.hasRemaining()) {
+			return true;
+		}
+		int compressedSize = readBuffer.getInt(readBuffer.position());
+		if (compressedSize == 0 || compressedSize == PageMetadata.EOF) {
+			return false;
+		}
+		loadBlock();
+		return true;
+	}
+
+	private void loadBlock() {
+		int offset = readBuffer.position();
+		int compressedSize = readBuffer.getInt(offset);
+		int size = readBuffer.getInt(offset + PageMetadata.INT_SIZE);
+		if (scratch == null || scratch.length < compressedSize) {
+			scratch = new byte[compressedSize];
+		}
+		ByteBuffer source = readBuffer.duplicate();
+		source.position(offset + WritePage.BLOCK_HEADER_SIZE);
+		source.get(scratch, 0, compressedSize);
+		// slices of a block stay valid, so every block gets its own array
+		byte[] raw = new byte[size];
+		Lz4Codec.decompress(scratch, 0, compressedSize, raw, 0, size);
+		block = ByteBuffer.wrap(raw).asReadOnlyBuffer();
+		blockView = ByteBuffer.wrap(raw).asReadOnlyBuffer();
+		blockOffset = offset;
+		readBuffer.position(offset + WritePage.BLOCK_HEADER_SIZE + compressedSize);
+	}
 	
 	public void delete() {
-		cacheFile.delete();
-        metaData.close();
-        metaData = null;
+		delete(null);
+	}
+
+	// hand the file to the writer for reuse if possible
+	void delete(WritePageFactory recycler) {
+		if (recycler == null || !recycler.recycle(cacheFile)) {
+			cacheFile.delete();
+		}
+        release();
         cacheFile = null;
 	}
 
+	// unmap the metadata of a page that is no longer used
+	void release() {
+		metaDataLock.lock();
+		try {
+			if (metaData != null) {
+				metaData.close();
+				metaData = null;
+			}
+		} finally {
+			metaDataLock.unlock();
+		}
+	}
+
+	private PageMetadata metaData() {
+		metaDataLock.lock();
+		try {
+			if (metaData == null) {
+				metaData = new PageMetadata();
+				unlockMetadata();
+			}
+			return metaData;
+		} finally {
+			metaDataLock.unlock();
+		}
+	}
+
+	// faults the page in with a mapping of its own, load() also tells the os we are going to read it,
+	// false if the page is gone
+	boolean prefetch() {
+		MappedByteBuffer buffer = null;
+		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "r");
+		     FileChannel channel = rand.getChannel()) {
+			buffer = Unmapper.map(channel, READ_ONLY, 0, getFileSize());
+			buffer.load();
+			return true;
+		} catch (IOException ex) {
+			return false;
+		} finally {
+			Unmapper.unmap(buffer);
+		}
+	}
+
+	/**
+	 * offset and timestamp of a chunk every STRIDE bytes of an uncompressed page, seeks fill it
+	 * while they walk the page so the next seek only walks the last stride, entries are only
+	 * appended and replaced with compare and set, the chunk timestamps of a page are expected
+	 * to grow, an older chunk behind a newer one might be skipped
+	 */
+	static final class ChunkIndex {
+
+		static final int STRIDE = 64 * 1024;
+
+		private static final Entries EMPTY = new Entries(new int[0], new long[0]);
+
+		private final AtomicReference<Entries> entries = new AtomicReference<>(EMPTY);
+
+
+		// offset of the last indexed chunk older than the timestamp, 0 if there is none
+		int before(long timestamp) {
+			Entries current = entries.get();
+			int low = 0;
+			int high = current.timestamps.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (current.timestamps[mid] < timestamp) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low == 0 ? 0 : current.offsets[low - 1];
+		}
+
+		// the chunk is indexed if it starts a stride behind the last entry
+		void add(int offset, long timestamp) {
+			while (true) {
+				Entries current = entries.get();
+				int size = current.offsets.length;
+				int last = size == 0 ? 0 : current.offsets[size - 1];
+				if (offset - last < STRIDE) {
+					return;
+				}
+				int[] offsets = Arrays.copyOf(current.offsets, size + 1);
+				long[] timestamps = Arrays.copyOf(current.timestamps, size + 1);
+				offsets[size] = offset;
+				timestamps[size] = timestamp;
+				if (entries.compareAndSet(current, new Entries(offsets, timestamps))) {
+					return;
+				}
+			}
+		}
+
+		private static final class Entries {
+
+			final int[] offsets;
+			final long[] timestamps;
+
+			Entries(int[] offsets, long[] timestamps) {
+				this.offsets = offsets;
+				this.timestamps = timestamps;
+			}
+
+		}
+
+	}
+
 	private void initBuffer() {
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "r");
 		     FileChannel channel = rand.getChannel()) {
-			readBuffer = channel.map(READ_ONLY, PageMetadata.METADATA_SIZE, 
-												metaData.getFileSize() - PageMetadata.METADATA_SIZE);	
+			readBuffer = Unmapper.map(channel, READ_ONLY, PageMetadata.METADATA_SIZE, 
+												metaData().getFileSize() - PageMetadata.METADATA_SIZE);	
+			view = readBuffer.duplicate();
+			int version = metaData().getVersion();
+			headerSize = PageMetadata.headerSize(version);
+			timestamps = PageMetadata.hasTimestamps(version);
+			compressed = metaData().getCodec() != PageMetadata.NO_CODEC;
+			verify = PageMetadata.hasChecksums(version) && verifyPolicy != null && verifyPolicy.verifyOnRead();
 		} catch (IOException ex) {
 			throw new CacheException("error reading metadata: '" + cacheFile + "'", ex);
 		} 
@@ -99,7 +525,7 @@ public class ReadPage {
 		}	
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw"); // needed for the lock
 			 FileChannel channel = rand.getChannel()) {
-			metaData.read(channel.map(READ_ONLY, 0, PageMetadata.METADATA_SIZE));
+			metaData.read(Unmapper.map(channel, READ_ONLY, 0, PageMetadata.METADATA_SIZE));
 
 		} catch (IOException ex) {
 			throw new CacheException("error reading metadata: '" + cacheFile + "'", ex);
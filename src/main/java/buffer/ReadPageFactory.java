@@ -2,8 +2,6 @@ package buffer;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
-import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
-import it.unimi.dsi.fastutil.longs.Long2ObjectAVLTreeMap;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -13,87 +11,288 @@ import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ReadPageFactory {
 
 	private File cacheDir;
 
-	private PageIndexWatcher pageIndexWatcher;
+	// polled by the thread all factories share, null while no stream is open
+	private DirectoryWatch directoryWatch;
 
-	ReentrantLock lock = new ReentrantLock();
-	Condition morePages = lock.newCondition();
-	private final Long2ObjectAVLTreeMap<ReadPage> pageCache = new Long2ObjectAVLTreeMap<>();
+	// only used if the page directory can't be mapped
+	private WatchKey watchKey;
+
+	// guards the start and stop of the page discovery and the reclaiming of pages against readers
+	// that are about to start at a page, lookups of pages don't need it
+	private final ReentrantLock lock = new ReentrantLock();
+	private final PageRegistry registry = new PageRegistry();
+
+	// all named readers found in the cache dir, including the ones that are currently not open
+	private final ConcurrentMap<String, ReaderCursor> cursors = new ConcurrentHashMap<>();
+	private final List<ReaderCursor> anonymousCursors = new CopyOnWriteArrayList<>();
+
+	// number of open streams using this factory
+	private int users;
+
+
+	private WritePageFactory pageRecycler;
+
+	private BufferMetrics metrics;
 
 
 	public void setCacheDir(File cacheDir) {
 		this.cacheDir = cacheDir;
 	}
 
-	public ReadPage findPageBefore(long timestamp) {
-		lock.lock();
-		try {			
-			while (pageCache.size() == 0) {
-				System.out.println("before morePages.await()");
-				morePages.await();   // deadlock here!
-				System.out.println("after morePages.await()");
-			}			
-			long start = pageCache.firstLongKey();
-			if (timestamp < pageCache.get(start).getTimestamp()) {
-				throw new CacheException("timestamp no longer available");
-			}
-			long end = pageCache.lastLongKey();
-			if (pageCache.get(end).getTimestamp() < timestamp) {
-				return getNextPage(pageCache.get(end)).open(); // blocks till the page is available
-			}				
-			// walk backwards till we get a smaller timestamp
-			for (long index = end; index > start; index--) {
-				if (pageCache.get(index).getTimestamp() < timestamp) {
-					return pageCache.get(index).open();
+	// deleted pages are offered to the writer for reuse
+	public void setPageRecycler(WritePageFactory pageRecycler) {
+		this.pageRecycler = pageRecycler;
+	}
+
+	public void setMetrics(BufferMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// the reader starts at the page before the timestamp, its cursor holds back the deletion
+	// of the page from then on, tries again if the page was deleted before the cursor was set
+	ReadPage findPageBefore(long timestamp, ReaderCursor cursor) {
+		while (true) {
+			ReadPage page = findPageBefore(timestamp);
+			lock.lock();
+			try {
+				if (registry.snapshot().get(page.getIndex()) == page) {
+					cursor.update(page.getIndex(), 0);
+					return page;
 				}
+			} finally {
+				lock.unlock();
 			}
+		}
+	}
+
+	public ReadPage findPageBefore(long timestamp) {
+		PageRegistry.Snapshot pages = awaitPages();
+		if (timestamp < pages.first().getTimestamp()) {
+			throw new CacheException("timestamp no longer available");
+		}
+		ReadPage last = pages.last();
+		if (last.getTimestamp() < timestamp) {
+			if (last.hasChunkTimestamps()) {
+				return last; // the reader skips to the timestamp
+			}
+			return getNextPage(last); // blocks till the page is available
+		}
+		// the last page starting before the timestamp
+		ReadPage page = pages.lastBefore(timestamp);
+		if (page == null) {
 			// if the first timestamp is equal to the timestamp we use it 
-			if (pageCache.get(start).getTimestamp() == timestamp) {
-				return pageCache.get(start).open();				
+			page = pages.firstAt(timestamp);
+		}
+		if (page != null) {
+			return page;
+		}
+		throw new CacheException("timestamp not found");
+	}
+
+	public ReadPage getNextPage(ReadPage lastPage) {
+		long lastIndex = lastPage.getIndex();
+		PageRegistry.Snapshot pages = awaitPages();
+		try {
+			while (true) {
+				if (lastIndex + 1 < pages.firstIndex()) {
+					// the writer dropped the pages to make room
+					throw new DataLostException(lastIndex + 1, pages.firstIndex() - 1);
+				}
+				if (lastIndex > pages.lastIndex()) {
+					throw new CacheException("page is out of order");
+				}
+				if (lastIndex != pages.lastIndex()) {
+					return pages.get(lastIndex + 1);
+				}
+				pages = registry.awaitChange(pages);
+				while (pages.size() == 0) {
+					pages = registry.awaitChange(pages);
+				}
+			}
+		} catch (InterruptedException ex) {
+			throw new CacheException(ex);
+		}
+	}
+	
+	// blocks till the page is available
+	public ReadPage getPage(long pageIndex) {
+		PageRegistry.Snapshot pages = registry.snapshot();
+		try {
+			while (pages.size() == 0 || pages.lastIndex() < pageIndex) {
+				pages = registry.awaitChange(pages);
+			}
+		} catch (InterruptedException ex) {
+			throw new CacheException(ex);
+		}
+		ReadPage page = pages.get(pageIndex);
+		if (page == null && pageIndex < pages.firstIndex()) {
+			throw new DataLostException(pageIndex, pages.firstIndex() - 1);
+		}
+		if (page == null) {
+			throw new CacheException("page " + pageIndex + " is no longer available");
+		}
+		return page;
+	}
+
+	// like getNextPage() but returns null instead of waiting for the writer
+	public ReadPage pollNextPage(ReadPage lastPage) {
+		long lastIndex = lastPage.getIndex();
+		PageRegistry.Snapshot pages = registry.snapshot();
+		if (pages.size() > 0 && lastIndex + 1 < pages.firstIndex()) {
+			throw new DataLostException(lastIndex + 1, pages.firstIndex() - 1);
+		}
+		ReadPage page = pages.get(lastIndex + 1);
+		if (page == null) {
+			registry.checkFailure();
+		}
+		return page;
+	}
+
+	// a page the writer already moved past, null if there is none with that index
+	ReadPage pollCompletePage(long pageIndex) {
+		PageRegistry.Snapshot pages = registry.snapshot();
+		if (pages.size() == 0 || pageIndex >= pages.lastIndex()) {
+			return null;
+		}
+		return pages.get(pageIndex);
+	}
+	
+	// the oldest page, readers continue there after they lost data
+	public ReadPage getFirstPage() {
+		return awaitPages().first();
+	}
+
+	// blocks till there is at least one page
+	private PageRegistry.Snapshot awaitPages() {
+		PageRegistry.Snapshot pages = registry.snapshot();
+		try {
+			while (pages.size() == 0) {
+				pages = registry.awaitChange(pages);
 			}
 		} catch (InterruptedException ex) {
 			throw new CacheException(ex);
+		}
+		return pages;
+	}
+
+	public void deletePage(ReadPage page) {
+		unregister(page);
+		page.delete(pageRecycler);
+		if (metrics != null) {
+			metrics.pagesDeleted.incrementAndGet();
+		}
+	}
+
+	ReaderCursor openCursor(String name) {
+		lock.lock();
+		try {
+			ReaderCursor cursor = cursors.get(name);
+			if (cursor == null) {
+				cursor = registerCursor(new ReaderCursor(cacheDir, name));
+			}
+			return cursor;
 		} finally {
 			lock.unlock();
 		}
-		throw new CacheException("timestamp not found");
 	}
 
-	public ReadPage getNextPage(ReadPage lastPage) {
+	ReaderCursor anonymousCursor() {
+		ReaderCursor cursor = new ReaderCursor();
+		anonymousCursors.add(cursor);
+		return cursor;
+	}
+
+	void removeCursor(ReaderCursor cursor) {
+		anonymousCursors.remove(cursor);
+	}
+
+	// under the lock so the scan for cursor files of other processes doesn't open it again
+	void deleteCursor(String name) {
 		lock.lock();
-		try {	
-			long lastIndex = lastPage.getIndex();
-			if (lastIndex < pageCache.firstLongKey()) {
-				throw new CacheException("last page is too old, can't find next page since it was already removed");
-			}
-			if (lastIndex > pageCache.lastLongKey()) {
-				throw new CacheException("page is out of order");
+		try {
+			ReaderCursor cursor = cursors.remove(name);
+			if (cursor != null) {
+				cursor.delete();
+			} else {
+				new File(cacheDir, name + ReaderCursor.CURSOR_POSTFIX).delete();
 			}
+		} finally {
+			lock.unlock();
+		}
+	}
 
-			while (lastIndex == pageCache.lastLongKey()) {
-				morePages.await();
+	// delete all pages that every reader has left behind, nothing if there is no reader,
+	// the last page and the page the writer appends to are never deleted
+	public void reclaimPages() {
+		List<ReadPage> reclaimed = new ArrayList<>();
+		lock.lock();
+		try {
+			long minIndex = Long.MAX_VALUE;
+			for (ReaderCursor cursor : cursors.values()) {
+				minIndex = minPageIndex(minIndex, cursor);
+			}
+			for (ReaderCursor cursor : anonymousCursors) {
+				minIndex = minPageIndex(minIndex, cursor);
+			}
+			PageRegistry.Snapshot pages = registry.snapshot();
+			if (minIndex == Long.MAX_VALUE || pages.size() == 0) {
+				return;
+			}
+			minIndex = Math.min(minIndex, pages.lastIndex());
+			if (pageRecycler != null) {
+				minIndex = Math.min(minIndex, pageRecycler.writingPageIndex());
+			}
+			ReadPage page;
+			while ((page = registry.unregisterFirstBefore(minIndex)) != null) {
+				reclaimed.add(page);
 			}
-			return pageCache.get(lastIndex + 1); 
-		} catch (InterruptedException ex) {
-			throw new CacheException(ex);
 		} finally {
 			lock.unlock();
 		}
+		for (ReadPage page : reclaimed) {
+			page.delete(pageRecycler);
+			if (metrics != null) {
+				metrics.pagesDeleted.incrementAndGet();
+			}
+		}
 	}
-	
-	public void deletePage(ReadPage page) {
-		unregister(page);
-		page.delete();
+
+	private static long minPageIndex(long minIndex, ReaderCursor cursor) {
+		long pageIndex = cursor.getPageIndex();
+		if (pageIndex == ReaderCursor.UNSET) {
+			// a named reader might still wait for its first page in another process, it could start at any page
+			return cursor.isPersistent() ? Math.min(minIndex, pageIndex) : minIndex;
+		}
+		return Math.min(minIndex, pageIndex);
 	}
 
 	public void initialize() {
+		lock.lock();
+		try {
+			if (users++ == 0) {
+				startup();
+			}
+		} catch (CacheException ex) {
+			users--;
+			throw ex;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void startup() {
 		if (!cacheDir.exists()) {
 			throw new CacheException("cache dir does not exist: '" + cacheDir + "'");
 		}
@@ -101,15 +300,33 @@ public class ReadPageFactory {
 			throw new CacheException("cache dir is not a directory: '" + cacheDir + "'");
 		}
 
+		registry.fail(null);  // a failed poll of an earlier startup
+
+		// pages created while we scan the cache dir are listed after this sequence
+		PageDirectory pageDirectory = null;
+		long sequence = 0;
 		try {
-			WatchService watcher = FileSystems.getDefault().newWatchService();
-			cacheDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE);
-			pageIndexWatcher = new PageIndexWatcher(watcher);
-			pageIndexWatcher.start();
-		} catch (IOException ex) {
-			throw new CacheException("error registering watcher for: '" + cacheDir + "'");
+			pageDirectory = new PageDirectory(cacheDir);
+			sequence = pageDirectory.sequence();
+		} catch (CacheException ex) {
+			// no directory, fall back to file system events
+			try {
+				watchKey = PageIndexWatcher.register(this);
+			} catch (IOException e) {
+				throw new CacheException("error registering watcher for: '" + cacheDir + "'");
+			}
 		}
 
+		registerPageFiles();
+		registerCursorFiles();
+
+		if (pageDirectory != null) {
+			directoryWatch = new DirectoryWatch(pageDirectory, sequence);
+			PageDirectoryPoller.add(directoryWatch);
+		}
+	}
+
+	private void registerPageFiles() {
 		final File[] files = cacheDir.listFiles(new FilenameFilter() {
 			@Override
 			public boolean accept(File dir, String name) {
@@ -122,84 +339,338 @@ public class ReadPageFactory {
 					+ " cacheDir is configured to '" + cacheDir + "'");
 		}
 		for (File file : files) {
-			register(new ReadPage(file));
+			ReadPage page = new ReadPage(file);
+			if (!register(page)) {
+				page.release();
+			}
 		}
+		forgetDeletedPages();
 	}
 
-	public void close() {
-		pageIndexWatcher.terminate();
+	// pages deleted while nobody listened, e.g. dropped by the writer while no reader was open
+	private void forgetDeletedPages() {
+		PageRegistry.Snapshot pages;
+		while ((pages = registry.snapshot()).size() > 0 && !pages.first().exists()) {
+			registry.unregister(pages.firstIndex());
+		}
 	}
 
+	// named readers of other processes
+	private void registerCursorFiles() {
+		final File[] cursorFiles = cacheDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(ReaderCursor.CURSOR_POSTFIX);
+			}
+		});
+		if (cursorFiles != null) {
+			for (File file : cursorFiles) {
+				openCursorFile(file);
+			}
+		}
+	}
 
-	private void register(ReadPage readPage) {
+	// the file might have been deleted since it was listed, opening it would create it again
+	private void openCursorFile(File file) {
 		lock.lock();
-		try {	
-			pageCache.put(readPage.getIndex(), readPage);
-			morePages.signal();
+		try {
+			if (file.exists()) {
+				openCursor(ReaderCursor.nameOf(file));
+			}
 		} finally {
 			lock.unlock();
 		}
 	}
 
-	private void unregister(ReadPage readPage) {
+	public void close() {
 		lock.lock();
-		try {	
-			pageCache.remove(readPage.getIndex());
+		try {
+			if (--users > 0) {
+				return;
+			}
+			if (directoryWatch != null) {
+				directoryWatch.terminate();
+				directoryWatch = null;
+			}
+			if (watchKey != null) {
+				PageIndexWatcher.unregister(this, watchKey);
+				watchKey = null;
+			}
+			for (ReaderCursor cursor : cursors.values()) {
+				cursor.close();
+			}
+			cursors.clear();
 		} finally {
 			lock.unlock();
-		}	
+		}
 	}
 
-	private class PageIndexWatcher extends Thread {
+	private ReaderCursor registerCursor(ReaderCursor cursor) {
+		ReaderCursor existing = cursors.putIfAbsent(cursor.getName(), cursor);
+		if (existing != null) {
+			cursor.close();
+			return existing;
+		}
+		return cursor;
+	}
 
-		private WatchService watcher;
 
+	// false if the page is already known, wakes all readers waiting for a page
+	private boolean register(ReadPage readPage) {
+		return registry.register(readPage);
+	}
+
+	private void unregister(ReadPage readPage) {
+		registry.unregister(readPage.getIndex());
+	}
+
+	// the writer deleted the page, a reader that still reads it keeps its own mapping
+	void dropped(long pageIndex) {
+		registry.unregister(pageIndex);
+	}
+
+	// the files created in the cache dir, only used if the page directory can't be mapped
+	@SuppressWarnings("unchecked")
+	private void filesCreated(List<WatchEvent<?>> events) {
+		for (WatchEvent<?> event : events) {
+			if (event.kind() != ENTRY_CREATE) {
+				continue;
+			}
+			File file = new File(cacheDir, ((WatchEvent<Path>)event).context().toFile().getName());
+			if (file.getName().endsWith(WritePageFactory.PAGEFILE_POSTFIX)) {
+				ReadPage page = new ReadPage(file);
+				if (!register(page)) {
+					page.release();
+				}
+			} else if (file.getName().endsWith(ReaderCursor.CURSOR_POSTFIX)) {
+				openCursorFile(file); // a reader in another process
+			}
+		}
+	}
+
+	// the page directory of this factory and how far we read it
+	private class DirectoryWatch {
+
+		private static final long CURSOR_SCAN_NANOS = 1000000000L;  // 1s
+
+		private final PageDirectory pageDirectory;
+
+		// next directory entry to read
+		private long sequence;
+
+		private long lastCursorScan = System.nanoTime();
+
+		// the poller closes the directory, it might be reading it right now
 		private volatile boolean stop = false;
 
 
-		PageIndexWatcher(WatchService watcher) {
-			this.watcher = watcher;
-			this.stop = false;
-			this.setName("CachePageWatchdog");
+		DirectoryWatch(PageDirectory pageDirectory, long sequence) {
+			this.pageDirectory = pageDirectory;
+			this.sequence = sequence;
 		}
 
-		public void terminate() {
+		void terminate() {
 			stop = true;
 		}
 
-		@Override
-		public void run() {
+		void fail(RuntimeException ex) {
+			registry.fail(ex instanceof CacheException ? (CacheException) ex
+					: new CacheException("error polling page directory of: '" + cacheDir + "'", ex));
+		}
+
+		// true if there were new entries
+		boolean poll(long now) {
+			if (now - lastCursorScan > CURSOR_SCAN_NANOS) {
+				registerCursorFiles();
+				lastCursorScan = now;
+			}
+			long end = pageDirectory.sequence();
+			if (sequence == end) {
+				return false;
+			}
+			if (end - sequence >= PageDirectory.CAPACITY) {
+				// we missed some entries
+				registerPageFiles();
+				sequence = end;
+				return true;
+			}
+			for (; sequence < end; sequence++) {
+				long pageIndex = pageDirectory.getPageIndex(sequence);
+				long timestamp = pageDirectory.getTimestamp(sequence);
+				int state = pageDirectory.getState(sequence);
+				if (!pageDirectory.isAvailable(sequence)) {
+					// overwritten while we read it
+					registerPageFiles();
+					sequence = pageDirectory.sequence();
+					return true;
+				}
+				if (state == PageDirectory.DROPPED) {
+					dropped(pageIndex);
+					continue;
+				}
+				File file = new File(cacheDir, WritePageFactory.filename(timestamp, pageIndex));
+				if (file.exists()) {
+					register(new ReadPage(file, pageIndex, timestamp));
+				}
+			}
+			return true;
+		}
+
+	}
+
+	// picks up the pages the writers list in the page directories of all factories of the process,
+	// backs off while nothing happens anywhere, one thread no matter how many buffers are open
+	private static class PageDirectoryPoller extends Thread {
+
+		private static final long MIN_IDLE_NANOS = 10000L;          // 10µs
+		private static final long MAX_IDLE_NANOS = 1000000L;        // 1ms
+
+		private static final List<DirectoryWatch> watches = new CopyOnWriteArrayList<>();
+
+		private static PageDirectoryPoller poller;
+		private static final ReentrantLock startLock = new ReentrantLock();
+
+
+		PageDirectoryPoller() {
+			this.setName("CachePageDirectory");
+			this.setDaemon(true);
+		}
+
+		static void add(DirectoryWatch watch) {
+			watches.add(watch);
+			startThread();
+		}
+
+		// also wakes the thread so the new directory is polled right away
+		private static void startThread() {
+			startLock.lock();
 			try {
-				while (!stop) {
-					listen();
+				if (poller == null) {
+					poller = new PageDirectoryPoller();
+					poller.start();
 				}
-			} catch (InterruptedException ex) {
-				ex.printStackTrace();
-			}		
+				LockSupport.unpark(poller);
+			} finally {
+				startLock.unlock();
+			}
 		}
 
-		@SuppressWarnings("unchecked")
-		private void listen() throws InterruptedException {
-			WatchKey watchKey = watcher.poll(5L, TimeUnit.SECONDS);
-			if (stop || watchKey == null) {
-				return;
+		@Override
+		public void run() {
+			long idleNanos = MIN_IDLE_NANOS;
+			while (true) {
+				boolean progress = false;
+				long now = System.nanoTime();
+				for (DirectoryWatch watch : watches) {
+					if (watch.stop) {
+						close(watch);
+						continue;
+					}
+					try {
+						progress |= watch.poll(now);
+					} catch (RuntimeException ex) {
+						// the readers of the buffer fail instead of waiting for pages forever,
+						// the other buffers keep going
+						watch.fail(ex);
+						close(watch);
+					}
+				}
+				if (progress) {
+					idleNanos = MIN_IDLE_NANOS;
+				} else if (watches.isEmpty()) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, idleNanos);
+					idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+				}
 			}
-			for (WatchEvent<?> event : watchKey.pollEvents()) {
-				if (stop || event.kind() == OVERFLOW) {
-					continue;
+		}
+
+		private static void close(DirectoryWatch watch) {
+			watches.remove(watch);
+			watch.pageDirectory.close();
+		}
+
+	}
+
+	// the file system events of all cache dirs without a page directory, one watch service and
+	// one thread for the process since the os limits the number of watch services per user
+	private static class PageIndexWatcher extends Thread {
+
+		// factories of the same cache dir share the key
+		private static final ConcurrentMap<WatchKey, List<ReadPageFactory>> factories = new ConcurrentHashMap<>();
+
+		private static WatchService watcher;
+		// guards the watcher and the lists of factories
+		private static final ReentrantLock registerLock = new ReentrantLock();
+
+
+		private final WatchService watchService;
+
+
+		PageIndexWatcher(WatchService watchService) {
+			this.watchService = watchService;
+			this.setName("CachePageWatchdog");
+			this.setDaemon(true);
+		}
+
+		static WatchKey register(ReadPageFactory factory) throws IOException {
+			registerLock.lock();
+			try {
+				if (watcher == null) {
+					watcher = FileSystems.getDefault().newWatchService();
+					new PageIndexWatcher(watcher).start();
 				}
-				File file = new File(cacheDir, ((WatchEvent<Path>)event).context().toFile().getName());
-				if (event.kind() == ENTRY_CREATE) {
-					if (file.getName().endsWith(WritePageFactory.PAGEFILE_POSTFIX)) {
-						register(new ReadPage(file));
-					} 
-					continue;
+				WatchKey key = factory.cacheDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_DELETE);
+				List<ReadPageFactory> keyFactories = factories.get(key);
+				if (keyFactories == null) {
+					keyFactories = new CopyOnWriteArrayList<>();
+					factories.put(key, keyFactories);
 				}
+				keyFactories.add(factory);
+				return key;
+			} finally {
+				registerLock.unlock();
 			}
-			// reset the key
-			boolean valid = watchKey.reset();
-			if (!valid) {
-				throw new CacheException("watch key became invalid");
+		}
+
+		static void unregister(ReadPageFactory factory, WatchKey key) {
+			registerLock.lock();
+			try {
+				List<ReadPageFactory> keyFactories = factories.get(key);
+				if (keyFactories != null) {
+					keyFactories.remove(factory);
+					if (keyFactories.isEmpty()) {
+						factories.remove(key);
+						key.cancel();
+					}
+				}
+			} finally {
+				registerLock.unlock();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					WatchKey key = watchService.take();
+					List<WatchEvent<?>> events = key.pollEvents();
+					List<ReadPageFactory> keyFactories = factories.get(key);
+					if (keyFactories != null) {
+						for (ReadPageFactory factory : keyFactories) {
+							factory.filesCreated(events);
+						}
+					}
+					if (!key.reset()) {
+						// the cache dir is gone
+						factories.remove(key);
+					}
+				} catch (InterruptedException ex) {
+					// keep going, we are a daemon
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
 			}
 		}
 
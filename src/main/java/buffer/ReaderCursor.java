@@ -0,0 +1,124 @@
+package buffer;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Pattern;
+
+/**
+ * position of a reader: the index of the page it is on and the offset in that page,
+ * named readers keep it in a small mapped file next to the pages so it survives a restart,
+ * an anonymous reader only keeps it in memory while it is open
+ */
+public class ReaderCursor {
+
+	static final String CURSOR_POSTFIX = ".cursor";
+
+	private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_\\-\\.]+");
+
+	private static final int PAGE_INDEX_POS = 0;
+	private static final int POSITION_POS = 8;
+	private static final int CURSOR_SIZE = 16;
+
+	static final long UNSET = -1;
+
+
+	private final String name;
+
+	private File cursorFile;
+
+	private volatile MappedByteBuffer buffer;
+
+	// only used by an in memory cursor
+	private volatile long pageIndex = UNSET;
+
+	private volatile long position;
+
+
+	// in memory only
+	ReaderCursor() {
+		this.name = null;
+	}
+
+	// creates or opens the cursor file of a named reader
+	ReaderCursor(File cacheDir, String name) {
+		if (!VALID_NAME.matcher(name).matches()) {
+			throw new CacheException("invalid reader name: '" + name + "'");
+		}
+		this.name = name;
+		this.cursorFile = new File(cacheDir, name + CURSOR_POSTFIX);
+		boolean created = !cursorFile.exists();
+		try (RandomAccessFile rand = new RandomAccessFile(cursorFile, "rw");
+				FileChannel channel = rand.getChannel()) {
+			buffer = Unmapper.map(channel, READ_WRITE, 0, CURSOR_SIZE);
+		} catch (IOException ex) {
+			throw new CacheException("error mapping reader cursor: '" + cursorFile + "'", ex);
+		}
+		if (created) {
+			buffer.putLong(POSITION_POS, 0);
+			buffer.putLong(PAGE_INDEX_POS, UNSET);
+		}
+	}
+
+	static String nameOf(File cursorFile) {
+		String filename = cursorFile.getName();
+		return filename.substring(0, filename.length() - CURSOR_POSTFIX.length());
+	}
+
+	String getName() {
+		return name;
+	}
+
+	boolean isPersistent() {
+		return buffer != null;
+	}
+
+	// UNSET if the reader never read anything, a named cursor might also be moved by another process
+	long getPageIndex() {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null) {
+			return mapped.getLong(PAGE_INDEX_POS);
+		}
+		return pageIndex;
+	}
+
+	long getPosition() {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null) {
+			return mapped.getLong(POSITION_POS);
+		}
+		return position;
+	}
+
+	void update(long pageIndex, long position) {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null) {
+			mapped.putLong(POSITION_POS, position);
+			mapped.putLong(PAGE_INDEX_POS, pageIndex);
+		} else {
+			this.position = position;
+			this.pageIndex = pageIndex;
+		}
+	}
+
+	void close() {
+		MappedByteBuffer mapped = buffer;
+		if (mapped != null) {
+			buffer = null;
+			mapped.force();
+			Unmapper.retire(mapped);
+		}
+	}
+
+	void delete() {
+		close();
+		if (cursorFile != null) {
+			cursorFile.delete();
+		}
+	}
+
+}
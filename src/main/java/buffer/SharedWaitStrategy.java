@@ -0,0 +1,186 @@
+package buffer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * wait strategy of a spool shared by processes, the sequence lives in the control file so the
+ * writer can be in any process, readers spin and yield first, then sleep till the doorbell of
+ * their process rings, java has no futex so the doorbell is a datagram on the loopback interface
+ * received by one thread per process, the sleep is bounded by maxWaitNanos since the writer
+ * might miss a reader that marks itself waiting just when the writer looks at the slot
+ */
+class SharedWaitStrategy implements WaitStrategy {
+
+	private static final int DEFAULT_SPIN_TRIES = 100;
+	private static final int DEFAULT_YIELD_TRIES = 100;
+	private static final long DEFAULT_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ControlFile controlFile;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition rung = lock.newCondition();
+	// only the first reader that goes to sleep opens the doorbell
+	private final ReentrantLock doorbellLock = new ReentrantLock();
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final int spinTries;
+	private final int yieldTries;
+	private final long maxWaitNanos;
+
+	// started by the first reader that goes to sleep, lives as long as the buffer
+	private volatile Doorbell doorbell;
+	private volatile int slot = ControlFile.NO_SLOT;
+
+
+	SharedWaitStrategy(ControlFile controlFile) {
+		this(controlFile, DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES, DEFAULT_MAX_WAIT_NANOS);
+	}
+
+	SharedWaitStrategy(ControlFile controlFile, int spinTries, int yieldTries, long maxWaitNanos) {
+		this.controlFile = controlFile;
+		this.spinTries = spinTries;
+		this.yieldTries = yieldTries;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	@Override
+	public long sequence() {
+		return controlFile.sequence();
+	}
+
+	@Override
+	public void waitFor(long seen, int idleCount) throws InterruptedException {
+		if (idleCount < spinTries) {
+			return;
+		}
+		if (idleCount < spinTries + yieldTries) {
+			Thread.yield();
+			return;
+		}
+		int ownSlot = openDoorbell();
+		lock.lockInterruptibly();
+		try {
+			waiting.incrementAndGet();
+			if (ownSlot != ControlFile.NO_SLOT) {
+				controlFile.setWaiting(ownSlot);
+			}
+			long nanos = maxWaitNanos;
+			while (controlFile.sequence() == seen && nanos > 0) {
+				nanos = rung.awaitNanos(nanos);
+			}
+		} finally {
+			waiting.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	// called by the writer, readers of this process are woken directly
+	@Override
+	public void signalAll() {
+		controlFile.publish(controlFile.getPageIndex(), controlFile.getTail(), slot);
+		wakeLocal();
+	}
+
+	// like signalAll() but also records the committed tail of the writer
+	void published(long pageIndex, long tail) {
+		controlFile.publish(pageIndex, tail, slot);
+		wakeLocal();
+	}
+
+	private void wakeLocal() {
+		if (waiting.get() == 0) {
+			return;
+		}
+		lock.lock();
+		try {
+			rung.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// the slot of this process or NO_SLOT if the control file has no free slot
+	private int openDoorbell() {
+		if (doorbell != null) {
+			return slot;
+		}
+		doorbellLock.lock();
+		try {
+			if (doorbell == null) {
+				Doorbell bell = new Doorbell();
+				slot = controlFile.claimSlot(bell.port());
+				if (slot == ControlFile.NO_SLOT) {
+					bell.terminate();
+				} else {
+					bell.start();
+				}
+				doorbell = bell;
+			}
+			return slot;
+		} finally {
+			doorbellLock.unlock();
+		}
+	}
+
+
+	// wakes the sleeping readers of this process for each datagram of the writer
+	private class Doorbell extends Thread {
+
+		private final DatagramChannel channel;
+
+
+		Doorbell() {
+			try {
+				channel = DatagramChannel.open();
+				channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			} catch (IOException ex) {
+				throw new CacheException("error opening doorbell channel", ex);
+			}
+			this.setName("CacheDoorbell");
+			this.setDaemon(true);
+		}
+
+		int port() {
+			try {
+				return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+			} catch (IOException ex) {
+				throw new CacheException("error opening doorbell channel", ex);
+			}
+		}
+
+		void terminate() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				// nothing left to wake
+			}
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer datagram = ByteBuffer.allocate(16);
+			try {
+				while (true) {
+					datagram.clear();
+					channel.receive(datagram);
+					wakeLocal();
+				}
+			} catch (ClosedChannelException ex) {
+				// terminated
+			} catch (IOException ex) {
+				// readers fall back to their max wait
+			}
+		}
+
+	}
+
+}
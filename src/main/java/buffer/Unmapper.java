@@ -0,0 +1,218 @@
+package buffer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * maps and unmaps the page buffers, retired buffers are unmapped in batches by a background
+ * thread after a grace period so a reader that still holds a view of a page doesn't crash the vm,
+ * uses Unsafe.invokeCleaner() on java 9+ and the buffer's cleaner on older versions,
+ * if neither is available the mapping is left to the garbage collector, we never call System.gc()
+ */
+public class Unmapper {
+
+	private static final long DEFAULT_GRACE_MILLIS = 1000;
+
+	private static final MethodHandle UNMAP = unmapHandle();
+
+	private static final AtomicLong mappedBytes = new AtomicLong();
+	private static final AtomicLong mappedCount = new AtomicLong();
+	private static final AtomicLong retiredBytes = new AtomicLong();
+	private static final AtomicLong unmappedCount = new AtomicLong();
+
+	private static final DelayQueue<Retired> retired = new DelayQueue<>();
+
+	private static volatile long graceNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_GRACE_MILLIS);
+
+	private static UnmapperThread unmapperThread;
+	private static final ReentrantLock startLock = new ReentrantLock();
+
+
+	private Unmapper() {
+	}
+
+	public static boolean isUnmapSupported() {
+		return UNMAP != null;
+	}
+
+	// how long a retired buffer stays mapped
+	public static void setGracePeriod(long millis) {
+		graceNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	// bytes currently mapped by the buffer including the retired ones that are not yet unmapped
+	public static long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	public static long getMappedCount() {
+		return mappedCount.get();
+	}
+
+	// bytes waiting for the grace period to end
+	public static long getRetiredBytes() {
+		return retiredBytes.get();
+	}
+
+	public static long getUnmappedCount() {
+		return unmappedCount.get();
+	}
+
+	static MappedByteBuffer map(FileChannel channel, MapMode mode, long position, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(mode, position, size);
+		mappedBytes.addAndGet(buffer.capacity());
+		mappedCount.incrementAndGet();
+		return buffer;
+	}
+
+	// unmap the buffer once the grace period is over
+	static void retire(MappedByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		retiredBytes.addAndGet(buffer.capacity());
+		retired.add(new Retired(buffer, System.nanoTime() + graceNanos));
+		startThread();
+	}
+
+	// only safe if no other thread can touch the buffer or one of its views anymore
+	static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		mappedBytes.addAndGet(-buffer.capacity());
+		mappedCount.decrementAndGet();
+		if (UNMAP == null) {
+			return;  // the garbage collector has to do it
+		}
+		try {
+			UNMAP.invokeExact((ByteBuffer) buffer);
+			unmappedCount.incrementAndGet();
+		} catch (Throwable ex) {
+			throw new CacheException("error unmapping buffer", ex);
+		}
+	}
+
+	// unmap everything that is retired right now, ignoring the grace period
+	static void drain() {
+		List<Retired> batch = new ArrayList<>();
+		for (Retired entry : retired.toArray(new Retired[0])) {
+			if (retired.remove(entry)) {  // the unmapper thread might be faster
+				batch.add(entry);
+			}
+		}
+		unmap(batch);
+	}
+
+	private static void unmap(List<Retired> batch) {
+		for (Retired entry : batch) {
+			retiredBytes.addAndGet(-entry.buffer.capacity());
+			unmap(entry.buffer);
+		}
+	}
+
+	private static void startThread() {
+		startLock.lock();
+		try {
+			if (unmapperThread == null) {
+				unmapperThread = new UnmapperThread();
+				unmapperThread.start();
+			}
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	private static MethodHandle unmapHandle() {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			// java 9+
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+		} catch (Exception ex) {
+			// try the java 7/8 way
+		}
+		try {
+			Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+			cleaner.setAccessible(true);
+			Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			clean.setAccessible(true);
+			MethodHandle cleanerHandle = lookup.unreflect(cleaner)
+					.asType(MethodType.methodType(Object.class, ByteBuffer.class));
+			MethodHandle cleanHandle = lookup.unreflect(clean)
+					.asType(MethodType.methodType(void.class, Object.class));
+			return MethodHandles.filterReturnValue(cleanerHandle, cleanHandle);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	private static class Retired implements Delayed {
+
+		final MappedByteBuffer buffer;
+
+		final long due;
+
+		Retired(MappedByteBuffer buffer, long due) {
+			this.buffer = buffer;
+			this.due = due;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = due - ((Retired) other).due;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+
+	}
+
+	private static class UnmapperThread extends Thread {
+
+		UnmapperThread() {
+			this.setName("CacheUnmapper");
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<Retired> batch = new ArrayList<>();
+			while (true) {
+				try {
+					batch.add(retired.take());
+					retired.drainTo(batch);  // everything else that is due
+					unmap(batch);
+				} catch (InterruptedException ex) {
+					// keep going, we are a daemon
+				} catch (CacheException ex) {
+					ex.printStackTrace();
+				}
+				batch.clear();
+			}
+		}
+
+	}
+
+}
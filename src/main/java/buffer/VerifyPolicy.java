@@ -0,0 +1,47 @@
+package buffer;
+
+/**
+ * what readers do with the checksums of pages written with chunk checksums,
+ * the writer always verifies them when it recovers the last page after a restart
+ */
+public class VerifyPolicy {
+
+	enum Mode {
+		SKIP,          // corrupt chunks are left out, the reader continues with the next one
+		FAIL,          // a corrupt chunk fails the read
+		RECOVERY_ONLY  // readers don't verify
+	}
+
+	private static final VerifyPolicy SKIP = new VerifyPolicy(Mode.SKIP);
+	private static final VerifyPolicy FAIL = new VerifyPolicy(Mode.FAIL);
+	private static final VerifyPolicy RECOVERY_ONLY = new VerifyPolicy(Mode.RECOVERY_ONLY);
+
+	final Mode mode;
+
+
+	private VerifyPolicy(Mode mode) {
+		this.mode = mode;
+	}
+
+	public static VerifyPolicy skip() {
+		return SKIP;
+	}
+
+	public static VerifyPolicy fail() {
+		return FAIL;
+	}
+
+	public static VerifyPolicy recoveryOnly() {
+		return RECOVERY_ONLY;
+	}
+
+	boolean verifyOnRead() {
+		return mode != Mode.RECOVERY_ONLY;
+	}
+
+	@Override
+	public String toString() {
+		return mode.toString();
+	}
+
+}
@@ -0,0 +1,20 @@
+package buffer;
+
+/**
+ * decides what a reader does while the current page has no new chunk,
+ * the writer calls signalAll() after each published chunk
+ */
+public interface WaitStrategy {
+
+	// sampled by the reader before it looks for the next chunk on the page
+	long sequence();
+
+	// wait until the writer published something after the sampled sequence,
+	// returning early is fine since the reader checks the page again anyway,
+	// idleCount is the number of consecutive empty reads of the caller
+	void waitFor(long sequence, int idleCount) throws InterruptedException;
+
+	// called by the writer after a chunk became visible to readers
+	void signalAll();
+
+}
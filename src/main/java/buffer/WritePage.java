@@ -6,10 +6,16 @@ import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -22,16 +28,176 @@ public class WritePage {
 
 	private MappedByteBuffer writeBuffer;
 
+	private volatile boolean eof;
+
+	private final FlushPolicy flushPolicy;
+
+	// chunk timestamps are stored as int delta to the page timestamp
+	private long timestamp;
+	private int version;
+	private int headerSize = PageMetadata.INT_SIZE;
+	private boolean timestamps;
+	private boolean checksums;
+
+	// compressed pages collect the chunks in a block and write it compressed when it is full
+	private Lz4Codec codec;
+	private ByteBuffer block;
+	private byte[] compressed;
+	private int blockSize;
+
+	// everything before this offset is synced
+	private int flushed;
+
+	// multi producer mode: next free offset and the number of producers still copying into this page
+	private AtomicLong tail;
+	private long limit;
+	private final AtomicInteger producers = new AtomicInteger();
+	// multi producer mode: held by the producer that got ROLL, handed back with releaseRoll() if it failed
+	private final AtomicBoolean rollClaimed = new AtomicBoolean();
+	// multi producer mode: chunks before this offset are published, the ones behind it might still be copied,
+	// producers and flush() scan in parallel and only move it forward
+	private final AtomicInteger published = new AtomicInteger();
+
+	// memory page size used to fault in a new page
+	private static final int PAGE_SIZE = 4096;
+
+	// results of reserve() when the page is full
+	static final long ROLL = -1;
+	static final long FULL = -2;
+
+	static final int BLOCK_SIZE = 64 * 1024;
+	static final int BLOCK_HEADER_SIZE = 8;  // compressed size and size
+
+
+	// ranged msync is only available since java 13, older versions sync the whole page
+	private static final MethodHandle FORCE_RANGE = forceRange();
 
 	WritePage(File file, long fileSize, long timestamp, long pageIndex) {
+		this(file, fileSize, timestamp, pageIndex, FlushPolicy.onPageClose());
+	}
+
+	WritePage(File file, long fileSize, long timestamp, long pageIndex, FlushPolicy flushPolicy) {
+		this(file, fileSize, timestamp, pageIndex, flushPolicy, PageMetadata.PLAIN_CHUNKS);
+	}
+
+	WritePage(File file, long fileSize, long timestamp, long pageIndex, FlushPolicy flushPolicy, int version) {
+		this(file, fileSize, timestamp, pageIndex, flushPolicy, version, PageMetadata.NO_CODEC);
+	}
+
+	WritePage(File file, long fileSize, long timestamp, long pageIndex, FlushPolicy flushPolicy, int version, int codec) {
+		this.flushPolicy = flushPolicy;
 		this.cacheFile = file;
 		this.metaData = new PageMetadata();
+		this.timestamp = timestamp;
+		setLayout(version);
 		metaData.setFileSize(fileSize);
 		metaData.setTimestamp(timestamp);
 		metaData.setPageIndex(pageIndex);
+		metaData.setVersion(version);
+		setCodec(codec, fileSize);
 		writeMetadata();
 	}
 
+	// a page prepared ahead of time by the page pool, the file might be a recycled page,
+	// timestamp and index are applied with assign() when the page is taken from the pool
+	WritePage(File file, long fileSize, FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+		this.cacheFile = file;
+		this.metaData = new PageMetadata();
+		metaData.setFileSize(fileSize);
+		mapMetadata(fileSize);
+		metaData.store(false);
+	}
+
+	// an existing page the writer continues after a restart, call recover() before writing
+	WritePage(File file, FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+		this.cacheFile = file;
+		this.metaData = new PageMetadata();
+		try (RandomAccessFile rand = new RandomAccessFile(file, "rw");
+				FileChannel channel = rand.getChannel()) {
+			metaData.write(Unmapper.map(channel, READ_WRITE, 0, PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE));
+		} catch (IOException ex) {
+			throw new CacheException("error reading metadata: '" + cacheFile + "'", ex);
+		}
+		this.timestamp = metaData.getTimestamp();
+		setLayout(metaData.getVersion());
+		setCodec(metaData.getCodec(), metaData.getFileSize());
+		initBuffer();
+	}
+
+	WritePage assign(long timestamp, long pageIndex, int version, int codec) {
+		this.timestamp = timestamp;
+		setLayout(version);
+		metaData.setTimestamp(timestamp);
+		metaData.setPageIndex(pageIndex);
+		metaData.setVersion(version);
+		setCodec(codec, writeBuffer.capacity() + PageMetadata.METADATA_SIZE);
+		metaData.store(flushPolicy.syncOnClose());
+		return this;
+	}
+
+	// zero the page and fault in all memory pages so the writer doesn't have to,
+	// needed for a recycled page since the old chunk sizes would be visible to readers
+	WritePage clear() {
+		for (int i = 0; i + 8 <= writeBuffer.capacity(); i += 8) {
+			writeBuffer.putLong(i, 0);
+		}
+		for (int i = writeBuffer.capacity() & ~7; i < writeBuffer.capacity(); i++) {
+			writeBuffer.put(i, (byte) 0);
+		}
+		return this;
+	}
+
+	// only fault in the memory pages
+	WritePage touch() {
+		for (int i = 0; i < writeBuffer.capacity(); i += PAGE_SIZE) {
+			writeBuffer.put(i, (byte) 0);
+		}
+		return this;
+	}
+
+	File getFile() {
+		return cacheFile;
+	}
+
+	PageMetadata getMetaData() {
+		return metaData;
+	}
+
+	// moves behind the last committed chunk and clears what the writer left after it,
+	// returns false if the page was already sealed with an EOF
+	boolean recover() {
+		int end = PageRecovery.committedEnd(writeBuffer, version, codec != null);
+		writeBuffer.position(end);
+		if (writeBuffer.getInt(end) == PageMetadata.EOF) {
+			eof = true;
+			return false;
+		}
+		// parts of chunks that were never committed would look like chunks once we write again
+		// only touch what isn't zero so untouched memory pages stay clean
+		int i = end;
+		for (; i + 8 <= writeBuffer.capacity(); i += 8) {
+			if (writeBuffer.getLong(i) != 0) {
+				writeBuffer.putLong(i, 0);
+			}
+		}
+		for (; i < writeBuffer.capacity(); i++) {
+			writeBuffer.put(i, (byte) 0);
+		}
+		return true;
+	}
+
+	// give up a page from the pool that was never used
+	void discard() {
+		Unmapper.retire(writeBuffer);
+		writeBuffer = null;
+		metaData.close();
+		metaData = null;
+		cacheFile.delete();
+		cacheFile = null;
+	}
+
 	// attach the write buffer and apply the final size of the page
 	WritePage open() {
 		if (writeBuffer != null) {
@@ -41,6 +207,145 @@ public class WritePage {
 		return this;
 	}
 	
+	// switch to multi producer mode, writers claim space with reserve() instead of using the position
+	WritePage share() {
+		if (codec != null) {
+			throw new CacheException("compressed pages can't be shared by producers");
+		}
+		limit = writeBuffer.capacity() - PageMetadata.INT_SIZE;  // the EOF
+		tail = new AtomicLong(writeBuffer.position());
+		published.set(writeBuffer.position());
+		return this;
+	}
+
+	// the largest reservation a page can take, still works after the page is closed
+	long capacityForWrite() {
+		return limit;
+	}
+
+	// offset behind the last chunk in the page, the reserved end with many producers
+	long tail() {
+		if (tail != null) {
+			return Math.min(tail.get(), limit);
+		}
+		return writeBuffer.position();
+	}
+
+	// the biggest chunk an empty page takes in one piece
+	long maxChunkSize() {
+		long size = writeBuffer.capacity() - headerSize - PageMetadata.INT_SIZE;  // the EOF
+		return Math.min(size, PageMetadata.MAX_CHUNK_SIZE);
+	}
+
+	// bytes in front of each chunk
+	int headerSize() {
+		return headerSize;
+	}
+
+	// the delta to the page timestamp needs to fit into the chunk header,
+	// if it doesn't the chunk needs a new page
+	boolean accepts(long timestamp) {
+		if (!timestamps) {
+			return true;
+		}
+		long delta = timestamp - this.timestamp;
+		return delta >= Integer.MIN_VALUE && delta <= Integer.MAX_VALUE;
+	}
+
+	// claims bytes for one or more chunks including their headers and returns the offset,
+	// the first producer that doesn't fit gets ROLL, it seals the page with an EOF and needs
+	// to create the next page, every producer after it gets FULL and waits for the new page
+	long reserve(int bytes, long timestamp) {
+		producers.incrementAndGet();
+		if (eof) {
+			// the page might already be closed, or the producer that sealed it failed to create the next one
+			producers.decrementAndGet();
+			return rollClaimed.compareAndSet(false, true) ? ROLL : FULL;
+		}
+		// a timestamp the page can't store doesn't fit either
+		long claim = accepts(timestamp) ? bytes : limit + 1;
+		long start = tail.getAndAdd(claim);
+		if (start + claim <= limit) {
+			return start;  // the caller has to publish()
+		}
+		producers.decrementAndGet();
+		if (start <= limit) {
+			writeBuffer.putInt((int) start, PageMetadata.EOF);
+			rollClaimed.set(true);
+			eof = true;
+			return ROLL;
+		}
+		return FULL;
+	}
+
+	// copy the chunk into a reserved range and make it visible by writing the size last,
+	// returns how far the page is published, the page might be closed once it returns
+	int publish(long start, long timestamp, ByteBuffer incoming) {
+		int end;
+		try {
+			int chunksize = incoming.remaining();
+			ByteBuffer target = writeBuffer.duplicate();
+			target.position((int) start + PageMetadata.INT_SIZE);
+			putHeader(target, timestamp, incoming);
+			target.put(incoming);
+			writeBuffer.putInt((int) start, chunksize);
+			end = publishedEnd();
+		} finally {
+			producers.decrementAndGet();
+		}
+		written();
+		return end;
+	}
+
+	// like publish() for a batch, the size of the first chunk is written last
+	int publish(long start, long timestamp, ByteBuffer[] chunks, int offset, int length) {
+		int end;
+		try {
+			ByteBuffer target = writeBuffer.duplicate();
+			target.position((int) start);
+			int firstChunksize = -1;
+			for (int i = offset; i < offset + length; i++) {
+				int chunksize = chunks[i].remaining();
+				if (chunksize == 0) {
+					continue;  // a zero size would look like the end of the data to readers
+				}
+				if (firstChunksize < 0) {
+					firstChunksize = chunksize;
+					target.putInt(0);  // will be overwritten
+				} else {
+					target.putInt(chunksize);
+				}
+				putHeader(target, timestamp, chunks[i]);
+				target.put(chunks[i]);
+			}
+			if (firstChunksize > 0) {
+				writeBuffer.putInt((int) start, firstChunksize);
+			}
+			end = publishedEnd();
+		} finally {
+			producers.decrementAndGet();
+		}
+		written();
+		return end;
+	}
+
+	// the producer that got ROLL couldn't create the next page, the next one that reserves gets ROLL
+	void releaseRoll() {
+		rollClaimed.set(false);
+	}
+
+	// true while a producer is creating the next page or the page is closed
+	boolean isRollClaimed() {
+		return rollClaimed.get();
+	}
+
+	// wait for producers that reserved space before the page was sealed
+	void awaitProducers() {
+		while (producers.get() > 0) {
+			Thread.yield();
+		}
+	}
+
 	// atomic move makes the page available to readers, make the file available to readers after
 	//  - metadata have been written
 	//  - the first buffer size have been written 
@@ -55,44 +360,220 @@ public class WritePage {
 	}
 	
     long remainingForWrite() {
-        writeBuffer.mark();
-        int marker = writeBuffer.getInt();
-        writeBuffer.reset();
-        if (marker == PageMetadata.EOF) {
+        if (eof) {
             return 0;
         }
+        if (codec != null) {
+            long available = compressedAvailable() - block.position() - headerSize;
+            if (available < block.remaining() && block.position() > 0) {
+                // the estimate gets tight, compressing the pending block tells how much room is left
+                flushBlock();
+                available = compressedAvailable() - headerSize;
+            }
+            return available;
+        }
         return writeBuffer.remaining() 
-        		- PageMetadata.INT_SIZE  // the size just read
+        		- headerSize             // the size just read
                 - PageMetadata.INT_SIZE; // the EOF 
     }
 
+    // number of chunks starting at offset that fit into this page
+    int chunksForWrite(ByteBuffer[] chunks, int offset, int length) {
+        if (eof) {
+            return 0;
+        }
+        long available = writeBuffer.remaining() - PageMetadata.INT_SIZE; // the EOF
+        if (codec != null) {
+            available = compressedAvailable() - block.position();
+        }
+        int count = 0;
+        while (count < length) {
+            int chunksize = chunks[offset + count].remaining();
+            if (codec == null && chunksize > PageMetadata.MAX_CHUNK_SIZE) {
+                break;  // its size would run into the fragment flags, it goes in pieces
+            }
+            available -= headerSize + chunksize;
+            if (available < 0) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return writeBuffer.position() == 0 && (block == null || block.position() == 0);
+    }
+
     void write(ByteBuffer incoming) {
+        write(timestamp, incoming);
+    }
+
+    void write(long timestamp, ByteBuffer incoming) {
     	if (writeBuffer == null) {
     		throw new CacheException("write buffer is closed");
     	}
         int chunksize = incoming.limit() - incoming.position();
-        if (remainingForWrite() < chunksize) {
-            writeBuffer.mark();
-            writeBuffer.putInt(PageMetadata.EOF);
-            writeBuffer.reset();
-            writeBuffer.force();
+        if (remainingForWrite() < chunksize || !accepts(timestamp)) {
+            writeEof();
+        } else if (codec != null) {
+            append(timestamp, incoming);
+            written();
         } else {
             int offsetChunksize = writeBuffer.position();
             writeBuffer.putInt(0);  // will be overwritten
+            putHeader(writeBuffer, timestamp, incoming);
             writeBuffer.put(incoming);
-   //         writeBuffer.force();
             writeBuffer.putInt(offsetChunksize, chunksize);
-   //         writeBuffer.force();
+            written();
+        }
+    }
+
+    // one piece of a chunk that spans pages, the flags go into the size so readers know how to join them,
+    // the caller makes sure it fits
+    void writeFragment(long timestamp, ByteBuffer incoming, int flags) {
+    	if (writeBuffer == null) {
+    		throw new CacheException("write buffer is closed");
+    	}
+    	if (codec != null) {
+    		throw new CacheException("compressed pages can't hold chunks bigger than a page");
+    	}
+        int chunksize = incoming.remaining();
+        int offsetChunksize = writeBuffer.position();
+        writeBuffer.putInt(0);  // will be overwritten
+        putHeader(writeBuffer, timestamp, incoming);
+        writeBuffer.put(incoming);
+        writeBuffer.putInt(offsetChunksize, chunksize | flags);
+        written();
+    }
+
+    // all chunks of the batch become visible to readers with the size of the first chunk,
+    // the sizes of the following chunks are written before that single store
+    void write(ByteBuffer[] chunks, int offset, int length) {
+        write(timestamp, chunks, offset, length);
+    }
+
+    void write(long timestamp, ByteBuffer[] chunks, int offset, int length) {
+    	if (writeBuffer == null) {
+    		throw new CacheException("write buffer is closed");
+    	}
+        if (chunksForWrite(chunks, offset, length) < length || !accepts(timestamp)) {
+            writeEof();
+            return;
+        }
+        if (codec != null) {
+            for (int i = offset; i < offset + length; i++) {
+                if (chunks[i].hasRemaining()) {
+                    append(timestamp, chunks[i]);
+                }
+            }
+            written();
+            return;
+        }
+        int offsetChunksize = -1;
+        int firstChunksize = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int chunksize = chunks[i].remaining();
+            if (chunksize == 0) {
+                continue;  // a zero size would look like the end of the data to readers
+            }
+            if (offsetChunksize < 0) {
+                offsetChunksize = writeBuffer.position();
+                firstChunksize = chunksize;
+                writeBuffer.putInt(0);  // will be overwritten
+            } else {
+                writeBuffer.putInt(chunksize);
+            }
+            putHeader(writeBuffer, timestamp, chunks[i]);
+            writeBuffer.put(chunks[i]);
+        }
+        if (offsetChunksize >= 0) {
+            writeBuffer.putInt(offsetChunksize, firstChunksize);
+            written();
+        }
+    }
+
+    // sync the range written since the last flush, a pending compressed block is written first,
+    // with many producers the range might hold chunks that are still copied, they are synced again
+    // with the next flush since only the published chunks count as flushed
+    synchronized void flush() {
+        if (writeBuffer == null) {
+            return;  // closed
+        }
+        flushBlock();
+        int end = end();
+        if (end > flushed) {
+            force(writeBuffer, flushed, end - flushed);
+            flushed = tail == null ? end : publishedEnd();
+        }
+    }
+
+    // producers publish out of order, the sizes tell how far the chunks are published without a gap,
+    // a size is written after the chunk, for a batch the size of its first chunk is written last
+    private int publishedEnd() {
+        long reserved = Math.min(tail.get(), limit);
+        int start = published.get();
+        int end = start;
+        while (end < reserved) {
+            int chunksize = writeBuffer.getInt(end);
+            if (chunksize <= 0) {
+                break;  // still copied or the EOF
+            }
+            end += headerSize + (chunksize & ~PageMetadata.FRAGMENT_FLAGS);
+        }
+        while (end > start && !published.compareAndSet(start, end)) {
+            start = published.get();
+        }
+        return Math.max(start, end);
+    }
+
+    int flushed() {
+        return flushed;
+    }
+
+    // apply the flush policy after a write
+    private void written() {
+        switch (flushPolicy.mode) {
+        case EVERY_WRITE:
+            flush();
+            break;
+        case EVERY_BYTES:
+            if (end() - flushed >= flushPolicy.interval) {
+                flush();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    // offset behind the data written so far including a possible EOF
+    private int end() {
+        int end;
+        if (tail == null) {
+            end = writeBuffer.position();
+        } else {
+            end = (int) Math.min(tail.get(), limit);
         }
+        return Math.min(end + PageMetadata.INT_SIZE, writeBuffer.capacity());
     }
 
-	WritePage close() {	
+	synchronized WritePage close() {	
 		if (writeBuffer == null) {
 			throw new CacheException("page file already closed: '" + cacheFile + "'");			
 		}
-        writeBuffer.putInt(PageMetadata.EOF);
-        writeBuffer.force();
-        PageMetadata.Cleaner.clean(writeBuffer);
+        if (tail == null) {
+            flushBlock();
+            writeBuffer.putInt(PageMetadata.EOF);
+        } else if (!eof && tail.get() <= limit) {
+            writeBuffer.putInt((int) tail.get(), PageMetadata.EOF);
+        }
+        rollClaimed.set(true);  // a closed page never rolls
+        eof = true;
+        if (flushPolicy.syncOnClose()) {
+            force(writeBuffer, flushed, end() - flushed);
+        }
+        Unmapper.retire(writeBuffer);
         writeBuffer = null;
         metaData.close();
         metaData = null;
@@ -100,6 +581,118 @@ public class WritePage {
 		return this;
 	}
 
+    private void setLayout(int version) {
+        this.version = version;
+        this.headerSize = PageMetadata.headerSize(version);
+        this.timestamps = PageMetadata.hasTimestamps(version);
+        this.checksums = PageMetadata.hasChecksums(version);
+    }
+
+    private void setCodec(int codecId, long fileSize) {
+        PageMetadata.checkCodec(codecId);
+        metaData.setCodec(codecId);
+        if (codecId == PageMetadata.NO_CODEC) {
+            codec = null;
+            block = null;
+            return;
+        }
+        codec = new Lz4Codec();
+        // small pages get small blocks, the end of a page is filled with blocks that get smaller
+        blockSize = (int) Math.min(BLOCK_SIZE, (fileSize - PageMetadata.METADATA_SIZE) / 8);
+        block = ByteBuffer.allocate(blockSize);
+    }
+
+    // raw bytes that still fit into the page if the pending block and one more block don't compress at all
+    private long compressedAvailable() {
+        long available = writeBuffer.remaining()
+                - PageMetadata.INT_SIZE  // the EOF
+                - 2 * (BLOCK_HEADER_SIZE + Lz4Codec.maxCompressedLength(0));
+        return available * 255 / 256;
+    }
+
+    private synchronized void append(long timestamp, ByteBuffer incoming) {
+        int bytes = headerSize + incoming.remaining();
+        if (block.remaining() < bytes) {
+            flushBlock();
+            if (block.capacity() < bytes) {
+                block = ByteBuffer.allocate(bytes);  // a chunk bigger than a block gets its own
+            }
+        }
+        block.putInt(incoming.remaining());
+        putHeader(block, timestamp, incoming);
+        block.put(incoming);
+    }
+
+    // compress the pending block into the page, it is visible to readers with the compressed size
+    private synchronized void flushBlock() {
+        if (block == null || block.position() == 0) {
+            return;
+        }
+        int size = block.position();
+        int maxLength = Lz4Codec.maxCompressedLength(size);
+        if (compressed == null || compressed.length < maxLength) {
+            compressed = new byte[maxLength];
+        }
+        int compressedSize = codec.compress(block.array(), 0, size, compressed, 0);
+        int offset = writeBuffer.position();
+        writeBuffer.putInt(0);  // will be overwritten
+        writeBuffer.putInt(size);
+        writeBuffer.put(compressed, 0, compressedSize);
+        writeBuffer.putInt(offset, compressedSize);
+        if (block.capacity() > blockSize) {
+            block = ByteBuffer.allocate(blockSize);
+        } else {
+            block.clear();
+        }
+    }
+
+    // the rest of the chunk header behind the size
+    private void putHeader(ByteBuffer target, long timestamp, ByteBuffer payload) {
+        if (timestamps) {
+            target.putInt((int) (timestamp - this.timestamp));
+        }
+        if (checksums) {
+            target.putInt(Crc32c.checksum(payload));
+        }
+    }
+
+    private void writeEof() {
+        flushBlock();
+        writeBuffer.mark();
+        writeBuffer.putInt(PageMetadata.EOF);
+        writeBuffer.reset();
+        eof = true;
+        if (flushPolicy.syncOnClose()) {
+            flush();
+        }
+    }
+
+    private static void force(MappedByteBuffer buffer, int index, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (FORCE_RANGE == null) {
+            buffer.force();
+            return;
+        }
+        try {
+            FORCE_RANGE.invokeExact(buffer, index, length);
+        } catch (Throwable ex) {
+            throw new CacheException("error syncing page", ex);
+        }
+    }
+
+    private static MethodHandle forceRange() {
+        try {
+            // the returned buffer is dropped so invokeExact() works as a statement
+            return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force",
+                    MethodType.methodType(MappedByteBuffer.class, int.class, int.class))
+                    .asType(MethodType.methodType(void.class, MappedByteBuffer.class, int.class, int.class));
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
 	// the metadata including the first buffer offset needs to be written when
 	// this page is not accessible to readers
 	private void writeMetadata() {
@@ -108,8 +701,18 @@ public class WritePage {
 		}	
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
 				FileChannel channel = rand.getChannel()) {
-			metaData.write(channel.map(READ_WRITE, 0, PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE));
-			metaData.force();
+			metaData.write(Unmapper.map(channel, READ_WRITE, 0, PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE));
+			metaData.store(flushPolicy.syncOnClose());
+		} catch (IOException ex) {
+			throw new CacheException("error writing metadata: '" + cacheFile + "'", ex);
+		} 
+	}
+
+	private void mapMetadata(long fileSize) {
+		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
+				FileChannel channel = rand.getChannel()) {
+			rand.setLength(fileSize);
+			metaData.write(Unmapper.map(channel, READ_WRITE, 0, PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE));
 		} catch (IOException ex) {
 			throw new CacheException("error writing metadata: '" + cacheFile + "'", ex);
 		} 
@@ -118,7 +721,7 @@ public class WritePage {
 	private void initBuffer() {
 		try (RandomAccessFile rand = new RandomAccessFile(cacheFile, "rw");
 				FileChannel channel = rand.getChannel()) {
-			writeBuffer = channel.map(READ_WRITE, PageMetadata.METADATA_SIZE, 
+			writeBuffer = Unmapper.map(channel, READ_WRITE, PageMetadata.METADATA_SIZE, 
 												  metaData.getFileSize() - PageMetadata.METADATA_SIZE);	
 		} catch (IOException ex) {
 			throw new CacheException("error reading metadata: '" + cacheFile + "'", ex);
@@ -2,6 +2,12 @@ package buffer;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -17,12 +23,51 @@ public class WritePageFactory {
 	//private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern(TIMESTAMP_FORMAT).withZoneUTC();
 	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern(TIMESTAMP_FORMAT);
 
+	// the writer checks for deleted pages in this interval while it waits for room
+	private static final long BLOCKED_PARK_NANOS = 1000000L;
+
 	
 	private File cacheDir;
 
 	private int filesize = DEFAULT_FILE_SIZE;
 
 	private long currentPageIndex = -1;
+
+	// number of pages prepared ahead of time, 0 creates each page on rollover
+	private int poolSize = 0;
+
+	private boolean touchPages = false;
+
+	private PagePool pagePool;
+
+	private FlushPolicy flushPolicy = FlushPolicy.onPageClose();
+
+	private int pageVersion = PageMetadata.PLAIN_CHUNKS;
+
+	private int pageCodec = PageMetadata.NO_CODEC;
+
+	private PageFlusher pageFlusher;
+
+	// lists the pages for the readers
+	private PageDirectory pageDirectory;
+
+	private CapacityPolicy capacityPolicy = CapacityPolicy.unbounded();
+
+	// the last page of the previous writer, see resume()
+	private WritePage recoveredPage;
+
+	private BufferMetrics metrics;
+
+	// pages of this spool that might still be on disk, oldest first
+	private final ArrayDeque<LivePage> livePages = new ArrayDeque<>();
+	private long liveBytes;
+
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicLong blockedCount = new AtomicLong();
+	private final AtomicLong droppedPages = new AtomicLong();
+
+	// the page that is currently written, for the flusher
+	private volatile WritePage currentPage;
     
 	
 	public void setCacheDir(File cacheDir) {
@@ -33,6 +78,47 @@ public class WritePageFactory {
 		this.filesize = size;
 	}
 
+	public void setPagePoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	// chunk layout of new pages, see PageMetadata
+	public void setPageVersion(int pageVersion) {
+		PageMetadata.headerSize(pageVersion); // fails for an unknown version
+		this.pageVersion = pageVersion;
+	}
+
+	public void setCapacityPolicy(CapacityPolicy capacityPolicy) {
+		if (capacityPolicy.maxPages == 1) {
+			throw new CacheException("the writer needs at least two pages: " + capacityPolicy);
+		}
+		this.capacityPolicy = capacityPolicy;
+	}
+
+	public void setMetrics(BufferMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	// compression of new pages, see PageMetadata
+	public void setPageCodec(int pageCodec) {
+		PageMetadata.checkCodec(pageCodec);
+		this.pageCodec = pageCodec;
+	}
+
+	// bytes in front of each chunk in new pages
+	int chunkHeaderSize() {
+		return PageMetadata.headerSize(pageVersion);
+	}
+
+	// fault in the memory of pool pages in the background
+	public void setTouchPages(boolean touchPages) {
+		this.touchPages = touchPages;
+	}
+
 	public void initialize() {
 		if (!cacheDir.exists()) {
 			throw new CacheException("cache dir does not exist: '" + cacheDir + "'");
@@ -53,42 +139,265 @@ public class WritePageFactory {
 					+ " cacheDir is configured to '" + cacheDir + "'");
 		}
 		currentPageIndex = 0;
+		List<LivePage> pages = new ArrayList<>();
 		for (File file : files) {
-			currentPageIndex = Math.max(currentPageIndex, new ReadPage(file).getIndex());
+			ReadPage page = new ReadPage(file);
+			currentPageIndex = Math.max(currentPageIndex, page.getIndex());
+			pages.add(new LivePage(page.getIndex(), file, file.length()));
+			page.release();
+		}
+		Collections.sort(pages);
+		recoveredPage = null;
+		if (!pages.isEmpty()) {
+			recoverPage(pages.get(pages.size() - 1).file);
+		}
+		livePages.clear();
+		liveBytes = 0;
+		for (LivePage page : pages) {
+			if (page.file.exists()) {
+				livePages.add(page);
+				liveBytes += page.size;
+			}
 		}
-		if (currentPageIndex > 0) {
-			// remove the last page since it might be incomplete
-			files[files.length - 1].delete();
-			currentPageIndex --;
+		if (capacityPolicy.maxBytes > 0 && capacityPolicy.maxBytes < 2L * filesize) {
+			throw new CacheException("the writer needs at least two pages: " + capacityPolicy);
+		}
+		pageDirectory = new PageDirectory(cacheDir);
+		if (poolSize > 0) {
+			pagePool = new PagePool(cacheDir, filesize, poolSize, touchPages, flushPolicy);
+			pagePool.start();
+		}
+		if (flushPolicy.mode == FlushPolicy.Mode.EVERY_MILLIS) {
+			pageFlusher = new PageFlusher(flushPolicy.interval);
+			pageFlusher.start();
 		}
 	}
 	
+	// the last page might have been left open by a writer that died, everything that was
+	// committed is kept and the new writer appends to it if the page layout didn't change
+	private void recoverPage(File file) {
+		WritePage page = new WritePage(file, flushPolicy);
+		PageMetadata metaData = page.getMetaData();
+		boolean open = page.recover();
+		if (open && metaData.getVersion() == pageVersion && metaData.getCodec() == pageCodec
+				&& metaData.getFileSize() == filesize) {
+			recoveredPage = page;
+			return;
+		}
+		page.close();  // seals it with an EOF behind the last committed chunk
+	}
+
+	// the first page of a new writer, the recovered last page if there is one
+	public WritePage resume(long timestamp) {
+		if (recoveredPage == null) {
+			return create(timestamp);
+		}
+		WritePage page = recoveredPage;
+		recoveredPage = null;
+		return currentPage = page;
+	}
+
 	// returns an already opened write page that is visible to readers
 	public WritePage create(long timestamp) {
 		assert currentPageIndex >= 0: "page index not initialized";
+		makeRoom();
 		currentPageIndex++;
-		final File tmpfile = new File(cacheDir, tempFilename(timestamp, currentPageIndex));
 		final File file = new File(cacheDir, filename(timestamp, currentPageIndex));
-		return new WritePage(tmpfile, filesize, timestamp, currentPageIndex)
-			.open()
-			.atomicMove(file);
+		WritePage page;
+		if (pagePool != null) {
+			page = pagePool.take()
+				.assign(timestamp, currentPageIndex, pageVersion, pageCodec)
+				.atomicMove(file);
+		} else {
+			final File tmpfile = new File(cacheDir, tempFilename(timestamp, currentPageIndex));
+			page = new WritePage(tmpfile, filesize, timestamp, currentPageIndex, flushPolicy, pageVersion, pageCodec)
+				.open()
+				.atomicMove(file);
+		}
+		if (currentPage != null) {
+			pageDirectory.seal(currentPageIndex - 1);
+		}
+		pageDirectory.append(currentPageIndex, timestamp, filesize);
+		livePages.add(new LivePage(currentPageIndex, file, filesize));
+		liveBytes += filesize;
+		if (metrics != null) {
+			metrics.pagesCreated.incrementAndGet();
+		}
+		return currentPage = page;
+	}
+
+	// total time the writer waited for readers to delete pages
+	public long getBlockedNanos() {
+		return blockedNanos.get();
+	}
+
+	// number of page rollovers that had to wait
+	public long getBlockedCount() {
+		return blockedCount.get();
+	}
+
+	// pages deleted by the writer before all readers were done with them
+	public long getDroppedPages() {
+		return droppedPages.get();
+	}
+
+	// applies the capacity policy before a new page is created
+	private void makeRoom() {
+		if (capacityPolicy.mode == CapacityPolicy.Mode.UNBOUNDED) {
+			return;
+		}
+		forgetDeletedPages();
+		if (!capacityPolicy.exceeds(livePages.size() + 1, liveBytes + filesize)) {
+			return;
+		}
+		switch (capacityPolicy.mode) {
+		case FAIL:
+			throw new CacheException("spool is full, " + livePages.size() + " pages with "
+					+ liveBytes + " bytes, " + capacityPolicy);
+		case DROP_OLDEST:
+			// the page we write to is never dropped
+			while (livePages.size() > 1 && capacityPolicy.exceeds(livePages.size() + 1, liveBytes + filesize)) {
+				LivePage page = livePages.poll();
+				liveBytes -= page.size;
+				// not recycled, a lagging reader might still have it mapped
+				if (page.file.delete()) {
+					pageDirectory.drop(page.index);
+					droppedPages.incrementAndGet();
+					if (metrics != null) {
+						metrics.pagesDropped.incrementAndGet();
+					}
+				}
+			}
+			break;
+		case BLOCK:
+			long start = System.nanoTime();
+			blockedCount.incrementAndGet();
+			try {
+				while (capacityPolicy.exceeds(livePages.size() + 1, liveBytes + filesize)) {
+					LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+					if (Thread.interrupted()) {
+						throw new CacheException(new InterruptedException("waiting for free pages"));
+					}
+					forgetDeletedPages();
+				}
+			} finally {
+				blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	// readers delete pages oldest first, in this or in another process
+	private void forgetDeletedPages() {
+		while (!livePages.isEmpty() && !livePages.peek().file.exists()) {
+			liveBytes -= livePages.poll().size;
+		}
+	}
+
+	// readers never reclaim the page the writer appends to, Long.MAX_VALUE if nothing is written
+	long writingPageIndex() {
+		WritePage page = currentPage;
+		return page != null ? page.getMetaData().getPageIndex() : Long.MAX_VALUE;
+	}
+
+	// a page that all readers are done with, returns false if the caller should delete it
+	public boolean recycle(File file) {
+		PagePool pool = pagePool;
+		return pool != null && pool.recycle(file);
 	}
 
 	public void close() {
-		// TODO Auto-generated method stub
-		
+		if (recoveredPage != null) {
+			recoveredPage.close();
+			recoveredPage = null;
+		}
+		if (pagePool != null) {
+			pagePool.close();
+			pagePool = null;
+		}
+		if (pageFlusher != null) {
+			pageFlusher.terminate();
+			pageFlusher = null;
+		}
+		if (pageDirectory != null) {
+			if (currentPage != null) {
+				pageDirectory.seal(currentPageIndex);
+			}
+			pageDirectory.close();
+			pageDirectory = null;
+		}
+		currentPage = null;
 	}
 	
-	private String filename(long timestamp, long index) {
+	// readers derive the name of a page from its directory entry
+	static String filename(long timestamp, long index) {
 		return DATE_FORMAT.print(timestamp)
-				+ "-" + String.format("%02d", currentPageIndex)
+				+ "-" + String.format("%02d", index)
 				+ PAGEFILE_POSTFIX;
 	}
 	
-	private String tempFilename(long timestamp, long index) {
+	private static String tempFilename(long timestamp, long index) {
 		return DATE_FORMAT.print(timestamp)
-				+ "-" + String.format("%02d", currentPageIndex)
+				+ "-" + String.format("%02d", index)
 				+ FILENAME_TMP_POSTFIX;
 	}
 
+
+	private static class LivePage implements Comparable<LivePage> {
+
+		final long index;
+		final File file;
+		final long size;
+
+		LivePage(long index, File file, long size) {
+			this.index = index;
+			this.file = file;
+			this.size = size;
+		}
+
+		@Override
+		public int compareTo(LivePage other) {
+			return Long.compare(index, other.index);
+		}
+
+	}
+
+	// syncs the current page in a fixed interval so the writer never waits for the disk
+	private class PageFlusher extends Thread {
+
+		private final long interval;
+
+		private volatile boolean stop = false;
+
+
+		PageFlusher(long interval) {
+			this.interval = interval;
+			this.setName("CachePageFlusher");
+			this.setDaemon(true);
+		}
+
+		public void terminate() {
+			stop = true;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (!stop) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException ex) {
+					// terminated
+				}
+				WritePage page = currentPage;
+				if (page != null) {
+					page.flush();
+				}
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,38 @@
+package buffer;
+
+/**
+ * spins for a while and then gives the core to other threads between the checks
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+	private static final int DEFAULT_SPIN_TRIES = 100;
+
+	private final int spinTries;
+
+
+	public YieldingWaitStrategy() {
+		this(DEFAULT_SPIN_TRIES);
+	}
+
+	public YieldingWaitStrategy(int spinTries) {
+		this.spinTries = spinTries;
+	}
+
+	@Override
+	public long sequence() {
+		return 0;
+	}
+
+	@Override
+	public void waitFor(long sequence, int idleCount) {
+		if (idleCount >= spinTries) {
+			Thread.yield();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		// nobody sleeps
+	}
+
+}
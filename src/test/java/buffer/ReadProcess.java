@@ -70,7 +70,7 @@ public class ReadProcess {
 			// print stats for the reading side:
 			if ((incomingCount.get() % 10_000) == 0) {
 				double mByte = incomingAmount.get() / (double)(1024 * 1024);
-				double mBps = mByte / (double) ((System.currentTimeMillis() - start) / 1000d);
+				double mBps = mByte / ((System.currentTimeMillis() - start) / 1000d);
 				System.out.printf(" Speed: %.2f [MByte/sec] "
 						+ "time: %d bytes: %d buffers: %d\n", mBps, System.currentTimeMillis(), incomingAmount.get(), incomingCount.get());
 			}
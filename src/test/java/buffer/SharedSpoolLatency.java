@@ -0,0 +1,141 @@
+package buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * measures the writer to reader latency of a shared spool with the writer and the readers
+ * in separate JVMs, the writer puts System.nanoTime() into each chunk, that is the same clock
+ * for all processes on linux, without arguments it starts two readers and one writer
+ */
+public class SharedSpoolLatency {
+
+	// the first chunks include class loading and JIT in all processes, they are not counted
+	private static final double WARMUP = 0.1;
+
+	// pause between writes so the readers actually go to sleep
+	private static final long PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	static final String WRITER = "writer";
+
+	private static final String LOG_POSTFIX = ".log";
+
+	// small pages so the readers also follow rollovers
+	private static final int PAGE_SIZE = 16 * 1024;
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			File dir = new File(System.getProperty("java.io.tmpdir"), "shared-latency");
+			dir.mkdirs();
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			int chunkCount = 20_000;
+			String[] names = new String[] { "reader1", "reader2" };
+			Process[] readers = new Process[names.length];
+			for (int i = 0; i < names.length; i++) {
+				readers[i] = spawn(names[i], dir, chunkCount);
+				awaitReader(dir, names[i]);
+			}
+			Process writer = spawn(WRITER, dir, chunkCount);
+			System.out.println("writer exit: " + writer.waitFor());
+			for (int i = 0; i < names.length; i++) {
+				System.out.println(names[i] + " exit: " + readers[i].waitFor());
+				System.out.print(output(dir, names[i]));
+			}
+			return;
+		}
+		File dir = new File(args[1]);
+		int chunkCount = Integer.parseInt(args[2]);
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(dir);
+		buffer.setPageSize(PAGE_SIZE);
+		buffer.setSharedSpool(true);
+		// a sync on each rollover would show up as latency
+		buffer.setFlushPolicy(FlushPolicy.never());
+		if (WRITER.equals(args[0])) {
+			IWriteStream writeStream = buffer.getWriteStream(0);
+			write(writeStream, chunkCount);
+			writeStream.close();
+		} else {
+			// a named reader so the other processes don't delete pages it still needs
+			IReadStream readStream = buffer.getReadStream(args[0], 0);
+			print(args[0], read(readStream, 0, chunkCount));
+			readStream.close();
+		}
+	}
+
+	// a JVM with the same class path running this class as the writer or as the reader with
+	// the given name, the output goes to a log file in the cache dir
+	static Process spawn(String name, File cacheDir, int chunkCount) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				SharedSpoolLatency.class.getName(), name, cacheDir.getPath(), String.valueOf(chunkCount));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(cacheDir, name + LOG_POSTFIX));
+		return builder.start();
+	}
+
+	// the reader holds back the deletion of pages once its cursor exists
+	static void awaitReader(File cacheDir, String name) throws InterruptedException {
+		File cursor = new File(cacheDir, name + ReaderCursor.CURSOR_POSTFIX);
+		while (!cursor.exists()) {
+			Thread.sleep(10);
+		}
+	}
+
+	static String output(File cacheDir, String name) throws IOException {
+		File log = new File(cacheDir, name + LOG_POSTFIX);
+		return log.exists() ? new String(Files.readAllBytes(log.toPath())) : "";
+	}
+
+	// each chunk is the time it was written and its number
+	static void write(IWriteStream writeStream, int chunkCount) {
+		ByteBuffer chunk = ByteBuffer.allocate(12);
+		for (int i = 0; i < chunkCount; i++) {
+			LockSupport.parkNanos(PAUSE_NANOS);
+			chunk.clear();
+			chunk.putLong(System.nanoTime());
+			chunk.putInt(i);
+			chunk.flip();
+			writeStream.write(System.currentTimeMillis(), chunk);
+		}
+	}
+
+	// the latencies of the chunks from the given number on, fails if a chunk is missing
+	static long[] read(IReadStream readStream, int from, int chunkCount) throws IOException, InterruptedException {
+		long[] latencies = new long[chunkCount - from];
+		for (int i = from; i < chunkCount; i++) {
+			ByteBuffer result = readStream.read();
+			latencies[i - from] = System.nanoTime() - result.getLong();
+			int number = result.getInt();
+			if (number != i) {
+				throw new CacheException("expected chunk " + i + " but got " + number);
+			}
+		}
+		return latencies;
+	}
+
+	// percentiles without the warmup
+	static void print(String name, long[] latencies) {
+		System.out.printf("%-8s p50: %7d [ns]  p99: %8d [ns]  p99.9: %9d [ns]  max: %10d [ns]\n",
+				name,
+				percentile(latencies, 0.5),
+				percentile(latencies, 0.99),
+				percentile(latencies, 0.999),
+				percentile(latencies, 1));
+	}
+
+	static long percentile(long[] latencies, double percentile) {
+		latencies = Arrays.copyOfRange(latencies, (int) (latencies.length * WARMUP), latencies.length);
+		Arrays.sort(latencies);
+		return latencies[Math.min((int) (latencies.length * percentile), latencies.length - 1)];
+	}
+
+}
@@ -2,15 +2,37 @@ package buffer;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -77,6 +99,450 @@ public class SimpleBufferTest {
 		reader.close();
 	}
 
+	@Test
+	public void batchTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("test0"));
+		// doesn't fit behind test0, goes to a new page with a single commit
+		writer.writeBatch(0, new ByteBuffer[] { bb("test1"), bb("test2"), bb("test3") });
+		// needs to be split over two pages
+		writer.writeBatch(0, new ByteBuffer[] { bb("test4"), bb("test5"), bb("test6"), bb("test7") });
+		writer.close();
+
+		IReadStream reader = buffer.getReadStream(0);
+		for (int i = 0; i < 8; i++) {
+			assertEquals("test" + i, str(reader.read()));
+		}
+		reader.close();
+	}
+
+	@Test
+	public void batchReadTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 7; i++) {
+			writer.write(0, bb("test" + i));
+		}
+		writer.close();
+
+		IReadStream reader = buffer.getReadStream(0);
+		SinglePageTest.CollectingHandler handler = new SinglePageTest.CollectingHandler();
+		// three chunks per page, the batch crosses the page boundary
+		assertEquals(5, reader.readBatch(handler, 5));
+		assertEquals(2, reader.readBatch(handler, 5));
+		for (int i = 0; i < 7; i++) {
+			assertEquals("test" + i, handler.chunks.get(i));
+		}
+		reader.close();
+	}
+
+	@Test
+	public void chunkViewTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 7; i++) {
+			writer.write(0, bb("test" + i));
+		}
+		writer.close();
+
+		IReadStream reader = buffer.getReadStream(0);
+		ChunkView view = new ChunkView();
+		byte[] bytes = new byte[5];
+		for (int i = 0; i < 7; i++) {
+			reader.read(view);
+			assertEquals(5, view.length());
+			assertEquals('t', view.getByte(0));
+			view.getBytes(0, bytes, 0, view.length());
+			assertEquals("test" + i, new String(bytes));
+		}
+		try {
+			view.getInt(2);
+			fail("read beyond the chunk");
+		} catch (IndexOutOfBoundsException ex) {
+			// expected
+		}
+		reader.close();
+	}
+
+	@Test
+	public void allocationFreeReadTest() throws IOException, InterruptedException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		int warmup = 50_000;
+		int count = 50_000;
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		ByteBuffer chunk = ByteBuffer.allocate(16);
+		for (int i = 0; i < warmup + count; i++) {
+			chunk.clear();
+			chunk.putLong(i).putLong(-i);
+			chunk.flip();
+			writer.write(0, chunk);
+		}
+
+		IReadStream reader = buffer.getReadStream(0);
+		ChunkView view = new ChunkView();
+		long sum = 0;
+		for (int i = 0; i < warmup; i++) {
+			reader.read(view);
+			sum += view.getLong(0) + view.getLong(8);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < count; i++) {
+			reader.read(view);
+			sum += view.getLong(0) + view.getLong(8);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		assertEquals(0, sum);
+		// less than one byte per read, i.e. only the measurement itself
+		assertEquals("allocated " + allocated + " byte for " + count + " reads", 0, allocated / count);
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void namedReadersTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 7; i++) {
+			writer.write(0, bb("test" + i));
+		}
+
+		IReadStream fast = buffer.getReadStream("fast", 0);
+		IReadStream slow = buffer.getReadStream("slow", 0);
+		try {
+			buffer.getReadStream("fast", 0);
+			fail("same reader opened twice");
+		} catch (CacheException ex) {
+			// expected
+		}
+		for (int i = 0; i < 7; i++) {
+			assertEquals("test" + i, str(fast.read()));
+		}
+		// three chunks per page, the slow reader still needs the first page
+		assertEquals(3, pageCount());
+		assertEquals("test0", str(slow.read()));
+		assertEquals("test1", str(slow.read()));
+		assertEquals("test2", str(slow.read()));
+		assertEquals("test3", str(slow.read()));
+		assertEquals(2, pageCount());
+		slow.close();
+		fast.close();
+		writer.close();
+
+		// restart, the slow reader continues where it stopped
+		buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		slow = buffer.getReadStream("slow", 0);
+		assertEquals("test4", str(slow.read()));
+		assertEquals("test5", str(slow.read()));
+		assertEquals("test6", str(slow.read()));
+		slow.close();
+
+		// the fast reader holds back the last page until it is deleted
+		assertEquals(1, pageCount());
+		buffer.deleteReader("fast");
+		buffer.deleteReader("slow");
+		assertEquals(0, cacheDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(ReaderCursor.CURSOR_POSTFIX);
+			}
+		}).length);
+	}
+
+	@Test
+	public void deleteReaderTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 7; i++) {
+			writer.write(0, bb("test" + i));
+		}
+		IReadStream reader = buffer.getReadStream("a", 0);
+		for (int i = 0; i < 7; i++) {
+			assertEquals("test" + i, str(reader.read()));
+		}
+		reader.close();
+		assertEquals(1, pageCount());
+		// without readers nothing is reclaimed, least of all the page the writer appends to
+		buffer.deleteReader("a");
+		assertEquals(1, pageCount());
+		writer.write(0, bb("test7"));
+		reader = buffer.getReadStream(0);
+		assertEquals("test6", str(reader.read()));
+		assertEquals("test7", str(reader.read()));
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void pagePoolTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+		buffer.setPagePoolSize(2, true);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		IReadStream reader = buffer.getReadStream(0);
+		// three chunks per page, pages the reader is done with get recycled
+		// and need to be cleared before they are used again
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 7; i++) {
+				writer.write(0, bb("test" + i));
+			}
+			for (int i = 0; i < 7; i++) {
+				assertEquals("test" + i, str(reader.read()));
+			}
+			// two ready, one waiting to be queued, two recycled
+			assertEquals(true, poolFileCount() <= 5);
+		}
+		reader.close();
+		writer.close();
+		assertEquals(0, poolFileCount());
+	}
+
+	private int poolFileCount() {
+		return cacheDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PagePool.POOL_PREFIX);
+			}
+		}).length;
+	}
+
+	private int pageCount() {
+		return cacheDir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(WritePageFactory.PAGEFILE_POSTFIX);
+			}
+		}).length;
+	}
+
+	@Test
+	public void findPageBeforeTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		// one chunk per page, page i starts at timestamp i * 10
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 10; i++) {
+			writer.write(i * 10, bb("c" + i));
+		}
+		assertEquals("c0", str(firstChunk(buffer, 0)));
+		assertEquals("c0", str(firstChunk(buffer, 5)));
+		assertEquals("c1", str(firstChunk(buffer, 20)));
+		assertEquals("c2", str(firstChunk(buffer, 25)));
+		assertEquals("c8", str(firstChunk(buffer, 90)));
+		try {
+			firstChunk(buffer, -1);
+			fail("timestamp before the first page");
+		} catch (CacheException ex) {
+			// expected
+		}
+		writer.close();
+	}
+
+	@Test
+	public void chunkTimestampSeekTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setChunkTimestamps(true);
+		// three chunks per page
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 10; i++) {
+			writer.write(i * 10, bb("c" + i));
+		}
+		assertEquals("c0", str(firstChunk(buffer, 0)));
+		assertEquals("c1", str(firstChunk(buffer, 5)));
+		assertEquals("c2", str(firstChunk(buffer, 20)));
+		assertEquals("c3", str(firstChunk(buffer, 21)));
+
+		// a named reader only seeks when it is new
+		IReadStream reader = buffer.getReadStream("seeker", 45);
+		assertEquals("c5", str(reader.read()));
+		reader.close();
+		reader = buffer.getReadStream("seeker", 0);
+		assertEquals("c6", str(reader.read()));
+		reader.close();
+		assertEquals("c9", str(firstChunk(buffer, 90)));
+
+		// the reader waits for a chunk that is newer than everything written so far
+		reader = buffer.getReadStream(95);
+		writer.write(95, bb("c10"));
+		assertEquals("c10", str(reader.read()));
+		reader.close();
+
+		// a delta that doesn't fit into the chunk header starts a new page
+		int pages = pageCount();
+		writer.write(95L + Integer.MAX_VALUE + 1, bb("c11"));
+		assertEquals(pages + 1, pageCount());
+		writer.close();
+		buffer.deleteReader("seeker");
+	}
+
+	@Test
+	public void pageDirectoryTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		IWriteStream writer = buffer.getWriteStream(0);
+		IReadStream reader = buffer.getReadStream("directory", 0);
+		// one chunk per page, the reader finds each page through the directory
+		for (int i = 0; i < 50; i++) {
+			writer.write(i, bb("c" + (i % 10)));
+			assertEquals("c" + (i % 10), str(reader.read()));
+		}
+
+		PageDirectory directory = new PageDirectory(cacheDir);
+		long sequence = directory.sequence();
+		assertEquals(true, sequence >= 50);
+		long last = sequence - 1;
+		assertEquals(PageDirectory.CREATED, directory.getState(last));
+		assertEquals(PageDirectory.SEALED, directory.getState(last - 1));
+		assertEquals(PageMetadata.METADATA_SIZE + 12, directory.getFileSize(last));
+		assertEquals(true, new File(cacheDir, WritePageFactory.filename(
+				directory.getTimestamp(last), directory.getPageIndex(last))).exists());
+		writer.close();
+		assertEquals(PageDirectory.SEALED, directory.getState(last));
+		directory.close();
+		reader.close();
+		buffer.deleteReader("directory");
+	}
+
+	@Test(timeout = 30000)
+	public void pageDirectoryFailureTest() throws Exception {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		IWriteStream writer = buffer.getWriteStream(0);
+		final IReadStream reader = buffer.getReadStream(0);
+		writer.write(0, bb("c0"));
+		assertEquals("c0", str(reader.read()));
+
+		// the next scan for cursor files of other processes fails on it
+		File stray = new File(cacheDir, "stray" + ReaderCursor.CURSOR_POSTFIX);
+		stray.mkdir();
+		Thread.sleep(2000);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread readerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					reader.read();
+				} catch (Throwable ex) {
+					failure.set(ex);
+				}
+			}
+		};
+		readerThread.start();
+		// the poller no longer picks up the new page, the reader fails instead of waiting forever
+		writer.write(1, bb("c1"));
+		readerThread.join();
+		assertTrue(failure.get() instanceof CacheException);
+		stray.delete();
+		writer.close();
+	}
+
+	@Test
+	public void pageDirectoryRingTest() {
+		PageDirectory directory = new PageDirectory(cacheDir);
+		for (int i = 0; i <= PageDirectory.CAPACITY; i++) {
+			directory.append(i, i, 100);
+		}
+		assertEquals(false, directory.isAvailable(0));
+		// the slot of the next entry, the writer overwrites it before the sequence moves
+		assertEquals(false, directory.isAvailable(1));
+		assertEquals(true, directory.isAvailable(2));
+		assertEquals(2, directory.getPageIndex(2));
+		assertEquals(false, directory.isAvailable(PageDirectory.CAPACITY + 1));
+		directory.close();
+	}
+
+	@Test
+	public void compressionTest() throws IOException, InterruptedException {
+		int iter = 10000;
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setCompression(true);
+		buffer.setChunkTimestamps(true);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 32000);
+		IWriteStream writer = buffer.getWriteStream(0);
+		long bytes = 0;
+		for (int i = 0; i < iter; i++) {
+			ByteBuffer chunk = bb("{\"event\":\"login\",\"user\":\"user" + (i % 50) + "\",\"seq\":" + i + "}");
+			bytes += 2 * PageMetadata.INT_SIZE + chunk.remaining();
+			writer.write(i, chunk);
+		}
+		writer.flush();
+		// json compresses well even in small blocks
+		assertEquals(true, pageCount() * 2 < bytes / 32000);
+
+		IReadStream reader = buffer.getReadStream("compressed", 1000);
+		for (int i = 1000; i < 1500; i++) {
+			assertEquals("{\"event\":\"login\",\"user\":\"user" + (i % 50) + "\",\"seq\":" + i + "}",
+					str(reader.read()));
+		}
+		reader.close();
+		// resumes in the middle of a block
+		reader = buffer.getReadStream("compressed", 0);
+		SinglePageTest.CollectingHandler handler = new SinglePageTest.CollectingHandler();
+		while (handler.chunks.size() < iter - 1500) {
+			reader.readBatch(handler, iter);
+		}
+		for (int i = 1500; i < iter; i++) {
+			assertEquals("{\"event\":\"login\",\"user\":\"user" + (i % 50) + "\",\"seq\":" + i + "}",
+					handler.chunks.get(i - 1500));
+		}
+		reader.close();
+		writer.close();
+		buffer.deleteReader("compressed");
+
+		Buffer shared = new Buffer();
+		shared.setCacheDir(cacheDir);
+		shared.setCompression(true);
+		shared.setMultiProducer(true);
+		try {
+			shared.getWriteStream(0);
+			fail("compressed pages with multiple producers");
+		} catch (CacheException ex) {
+			// expected
+		}
+	}
+
+	private ByteBuffer firstChunk(Buffer buffer, long timestamp) throws IOException, InterruptedException {
+		IReadStream reader = buffer.getReadStream(timestamp);
+		try {
+			return reader.read();
+		} finally {
+			reader.close();
+		}
+	}
+
 	@Test
 	public void concurrentTest() throws IOException, InterruptedException {
 		int iter = 10;
@@ -167,6 +633,1137 @@ public class SimpleBufferTest {
 	}
 
 
+	@Test
+	public void multiProducerTest() throws IOException, InterruptedException {
+		multiProducer(FlushPolicy.onPageClose());
+	}
+
+	@Test
+	public void multiProducerFlushTest() throws IOException, InterruptedException {
+		// producers sync their own chunks while others still copy into the page
+		multiProducer(FlushPolicy.everyWrite());
+	}
+
+	private void multiProducer(FlushPolicy flushPolicy) throws IOException, InterruptedException {
+		final int producerCount = 8;
+		final int iter = 500;
+
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 200);
+		buffer.setMultiProducer(true);
+		buffer.setFlushPolicy(flushPolicy);
+
+		final IWriteStream writer = buffer.getWriteStream(0);
+		Thread[] producers = new Thread[producerCount];
+		for (int p = 0; p < producerCount; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < iter; i++) {
+						if (i % 10 == 0) {
+							writer.writeBatch(i, new ByteBuffer[] { bb(producer + ":" + i), bb(producer + ":" + (i + 1)) });
+							i++;
+						} else {
+							writer.write(i, bb(producer + ":" + i));
+						}
+					}
+				}
+			};
+		}
+		IReadStream reader = buffer.getReadStream(0);
+		for (Thread producer : producers) {
+			producer.start();
+		}
+
+		int[] next = new int[producerCount];
+		for (int i = 0; i < producerCount * iter; i++) {
+			String[] chunk = str(reader.read()).split(":");
+			int producer = Integer.parseInt(chunk[0]);
+			// the chunks of a single producer are in order
+			assertEquals(next[producer]++, Integer.parseInt(chunk[1]));
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		for (int count : next) {
+			assertEquals(iter, count);
+		}
+		writer.close();
+		reader.close();
+	}
+
+	@Test
+	public void asyncWriteTest() throws IOException, InterruptedException {
+		final int producerCount = 4;
+		final int iter = 2000;
+
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 4096);
+		buffer.setMultiProducer(true);
+		// a small ring so the producers also have to wait for room
+		buffer.setAsyncWrites(64, 16);
+
+		final AsyncWriteStream writer = (AsyncWriteStream) buffer.getWriteStream(0);
+		Thread[] producers = new Thread[producerCount];
+		for (int p = 0; p < producerCount; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < iter; i++) {
+						writer.write(i, bb(producer + ":" + i));
+					}
+				}
+			};
+		}
+		IReadStream reader = buffer.getReadStream(0);
+		for (Thread producer : producers) {
+			producer.start();
+		}
+
+		int[] next = new int[producerCount];
+		for (int i = 0; i < producerCount * iter; i++) {
+			String[] chunk = str(reader.read()).split(":");
+			int producer = Integer.parseInt(chunk[0]);
+			// the chunks of a single producer are in order
+			assertEquals(next[producer]++, Integer.parseInt(chunk[1]));
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		// bigger than a slot
+		String big = new String(new char[100]).replace('\0', 'x');
+		long sequence = writer.writeAsync(iter, bb(big));
+		assertEquals(producerCount * iter, sequence);
+		writer.awaitWritten(sequence);
+		assertEquals(sequence, writer.getWritten());
+		assertEquals(big, str(reader.read()));
+
+		writer.write(iter, bb("last"));
+		writer.flush();
+		assertEquals(sequence + 1, writer.getWritten());
+		assertEquals("last", str(reader.read()));
+		writer.close();
+		reader.close();
+		try {
+			writer.write(iter, bb("closed"));
+			fail("write after close");
+		} catch (CacheException ex) {
+			// expected
+		}
+		try {
+			writer.flush();
+			fail("flush after close");
+		} catch (CacheException ex) {
+			// expected, the writer thread is gone
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void asyncFlushInterruptTest() throws Exception {
+		final CountDownLatch flushing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		IWriteStream slow = new IWriteStream() {
+			@Override
+			public void write(long timestamp, ByteBuffer buffer) {
+			}
+
+			@Override
+			public void writeBatch(long timestamp, ByteBuffer[] buffers) {
+			}
+
+			@Override
+			public void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length) {
+			}
+
+			@Override
+			public void flush() {
+				flushing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		final AsyncWriteStream writer = new AsyncWriteStream(slow, 4, 16, false).start();
+		writer.write(1, bb("a"));
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread flusher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					writer.flush();
+				} catch (Throwable ex) {
+					failure.set(ex);
+				}
+			}
+		};
+		flusher.start();
+		assertTrue(flushing.await(5, TimeUnit.SECONDS));
+		flusher.interrupt();
+		flusher.join();
+		assertTrue(failure.get() instanceof CacheException);
+		assertTrue(failure.get().getCause() instanceof InterruptedException);
+		release.countDown();
+		writer.close();
+	}
+
+	@Test(timeout = 10000)
+	public void asyncWriteFailureTest() throws IOException, InterruptedException {
+		IWriteStream failing = new IWriteStream() {
+			@Override
+			public void write(long timestamp, ByteBuffer buffer) {
+				throw new IllegalStateException("broken target");
+			}
+
+			@Override
+			public void writeBatch(long timestamp, ByteBuffer[] buffers) {
+				write(timestamp, buffers[0]);
+			}
+
+			@Override
+			public void writeBatch(long timestamp, ByteBuffer[] buffers, int offset, int length) {
+				write(timestamp, buffers[offset]);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		AsyncWriteStream writer = new AsyncWriteStream(failing, 4, 16, false).start();
+		long sequence = writer.writeAsync(1, bb("a"));
+		try {
+			// the writer thread dies with an unchecked exception, the waiter must not block forever
+			writer.awaitWritten(sequence);
+			fail("the target failed");
+		} catch (CacheException ex) {
+			assertTrue(ex.getCause().getCause() instanceof IllegalStateException);
+		}
+		try {
+			writer.write(2, bb("b"));
+			fail("the target failed");
+		} catch (CacheException ex) {
+			// expected
+		}
+		try {
+			writer.close();
+			fail("the target failed");
+		} catch (CacheException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void flushPoliciesTest() throws IOException, InterruptedException {
+		FlushPolicy[] policies = new FlushPolicy[] {
+				FlushPolicy.never(),
+				FlushPolicy.onPageClose(),
+				FlushPolicy.everyBytes(50),
+				FlushPolicy.everyMillis(1),
+				FlushPolicy.everyWrite() };
+		int iter = 20;
+
+		for (FlushPolicy policy : policies) {
+			cleanup();
+			prepareFilename();
+			Buffer buffer = new Buffer();
+			buffer.setCacheDir(cacheDir);
+			buffer.setPageSize(PageMetadata.METADATA_SIZE + 100);
+			buffer.setFlushPolicy(policy);
+
+			WriterThread writer = new WriterThread("abcdefghijh:", iter, buffer, 5);
+			ReaderThread reader = new ReaderThread(iter, buffer, 2);
+			reader.start();
+			writer.start();
+			writer.join();
+			reader.join();
+
+			String[] c = reader.result.toString().split(":");
+			assertEquals(policy.toString(), iter, c.length);
+		}
+	}
+
+	@Test
+	public void waitStrategiesTest() throws IOException, InterruptedException {
+		WaitStrategy[] strategies = new WaitStrategy[] {
+				new BusySpinWaitStrategy(),
+				new YieldingWaitStrategy(),
+				new ParkingWaitStrategy(),
+				new BlockingWaitStrategy() };
+		int iter = 20;
+
+		for (WaitStrategy strategy : strategies) {
+			cleanup();
+			prepareFilename();
+			Buffer buffer = new Buffer();
+			buffer.setCacheDir(cacheDir);
+			buffer.setPageSize(70);
+			buffer.setWaitStrategy(strategy);
+
+			WriterThread writer = new WriterThread("abcdefghijh:", iter, buffer, 10);
+			ReaderThread reader = new ReaderThread(iter, buffer, 2);
+			reader.start();
+			writer.start();
+			writer.join();
+			reader.join();
+
+			String[] c = reader.result.toString().split(":");
+			assertEquals(strategy.getClass().getSimpleName(), iter, c.length);
+			for (String s : c) {
+				assertEquals("abcdefghijh", s);
+			}
+		}
+	}
+
+
+
+
+	@Test
+	public void capacityFailTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		// one chunk per page
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		buffer.setCapacityPolicy(CapacityPolicy.fail(3, 0));
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("c0"));
+		writer.write(0, bb("c1"));
+		writer.write(0, bb("c2"));
+		try {
+			writer.write(0, bb("c3"));
+			fail("spool is full");
+		} catch (CacheException ex) {
+			// expected
+		}
+		assertEquals(3, pageCount());
+
+		// the reader frees the pages it left
+		IReadStream reader = buffer.getReadStream(0);
+		assertEquals("c0", str(reader.read()));
+		assertEquals("c1", str(reader.read()));
+		writer.write(0, bb("c3"));
+		assertEquals("c2", str(reader.read()));
+		assertEquals("c3", str(reader.read()));
+		reader.close();
+		writer.close();
+	}
+
+	@Test(timeout = 30000)
+	public void capacityFailMultiProducerTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		buffer.setCapacityPolicy(CapacityPolicy.fail(3, 0));
+		buffer.setMultiProducer(true);
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("c0"));
+		writer.write(0, bb("c1"));
+		writer.write(0, bb("c2"));
+		for (int i = 0; i < 2; i++) {
+			try {
+				writer.write(0, bb("c3"));
+				fail("spool is full");
+			} catch (CacheException ex) {
+				// expected, each write tries the rollover again
+			}
+		}
+		assertEquals(3, pageCount());
+
+		// the failed rollover didn't poison the stream
+		IReadStream reader = buffer.getReadStream(0);
+		assertEquals("c0", str(reader.read()));
+		assertEquals("c1", str(reader.read()));
+		writer.write(0, bb("c3"));
+		assertEquals("c2", str(reader.read()));
+		writer.write(0, bb("c4"));
+		assertEquals("c3", str(reader.read()));
+		assertEquals("c4", str(reader.read()));
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void capacityDropOldestTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		buffer.setCapacityPolicy(CapacityPolicy.dropOldest(3, 0));
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("c0"));
+		IReadStream reader = buffer.getReadStream("slow", 0);
+		assertEquals("c0", str(reader.read()));
+
+		// pages 1 to 7 are dropped
+		for (int i = 1; i < 10; i++) {
+			writer.write(0, bb("c" + i));
+		}
+		assertEquals(3, pageCount());
+		assertEquals(7, buffer.writePageFactory.getDroppedPages());
+		try {
+			reader.read();
+			fail("pages were dropped");
+		} catch (DataLostException ex) {
+			assertEquals(2, ex.getFirstLostPage());
+			assertEquals(7, ex.getLastLostPage());
+		}
+		assertEquals("c7", str(reader.read()));
+		reader.close();
+
+		// the cursor of the closed reader points to a dropped page
+		writer.write(0, bb("c10"));
+		writer.write(0, bb("c11"));
+		reader = buffer.getReadStream("slow", 0);
+		try {
+			reader.read();
+			fail("pages were dropped");
+		} catch (DataLostException ex) {
+			assertEquals(8, ex.getFirstLostPage());
+			assertEquals(9, ex.getLastLostPage());
+		}
+		assertEquals("c9", str(reader.read()));
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void capacityBlockTest() throws Exception {
+		final Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 12);
+		buffer.setCapacityPolicy(CapacityPolicy.block(3, 0));
+		final IWriteStream writer = buffer.getWriteStream(0);
+		Thread writerThread = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 6; i++) {
+					writer.write(0, bb("c" + i));
+				}
+			}
+		};
+		writerThread.start();
+		writerThread.join(200);
+		assertEquals(true, writerThread.isAlive());
+		assertEquals(3, pageCount());
+
+		IReadStream reader = buffer.getReadStream(0);
+		for (int i = 0; i < 6; i++) {
+			assertEquals("c" + i, str(reader.read()));
+		}
+		writerThread.join();
+		assertEquals(true, buffer.writePageFactory.getBlockedNanos() > 0);
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void capacityPolicyTest() {
+		try {
+			CapacityPolicy.block(-1, 0);
+			fail("negative limit");
+		} catch (CacheException ex) {
+			// expected
+		}
+		try {
+			new Buffer().setCapacityPolicy(CapacityPolicy.fail(1, 0));
+			fail("a single page");
+		} catch (CacheException ex) {
+			// expected
+		}
+	}
+
+
+
+	@Test
+	public void restartTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 100);
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("a"));
+		writer.write(0, bb("b"));
+		writer.close();
+
+		// the closed page is kept, the next writer starts a new one
+		buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 100);
+		writer = buffer.getWriteStream(0);
+		writer.write(0, bb("c"));
+		writer.write(0, bb("d"));
+		assertEquals(2, pageCount());
+
+		// a writer that dies leaves its page open, the next one appends to it
+		buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 100);
+		writer = buffer.getWriteStream(0);
+		writer.write(0, bb("e"));
+		assertEquals(2, pageCount());
+
+		IReadStream reader = buffer.getReadStream(0);
+		for (String chunk : new String[] {"a", "b", "c", "d", "e"}) {
+			assertEquals(chunk, str(reader.read()));
+		}
+		reader.close();
+		writer.close();
+	}
+
+	@Test
+	public void checksumTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setChunkTimestamps(true);
+		buffer.setChecksums(true);
+		// two chunks per page
+		int chunkSize = PageMetadata.headerSize(PageMetadata.version(true, true)) + 1;
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 2 * chunkSize + PageMetadata.INT_SIZE);
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(1, bb("a"));
+		writer.write(2, bb("b"));
+		writer.write(3, bb("c"));
+		writer.write(4, bb("d"));
+		writer.close();
+		assertEquals(2, pageCount());
+
+		// the second chunk of every page goes bad
+		for (File page : cacheDir.listFiles()) {
+			if (page.getName().endsWith(WritePageFactory.PAGEFILE_POSTFIX)) {
+				try (java.io.RandomAccessFile rand = new java.io.RandomAccessFile(page, "rw")) {
+					rand.seek(PageMetadata.METADATA_SIZE + 2 * chunkSize - 1);
+					rand.write('X');
+				}
+			}
+		}
+		buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setMetrics(new BufferMetrics());
+		buffer.setVerifyPolicy(VerifyPolicy.skip());
+		IReadStream reader = buffer.getReadStream(1);
+		assertEquals("a", str(reader.read()));
+		assertEquals("c", str(reader.read()));
+		assertEquals(1, buffer.getMetrics().getCorruptChunks());
+		reader.close();
+	}
+
+	@Test
+	public void readaheadTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		int pageSize = PageMetadata.METADATA_SIZE + 36;
+		buffer.setPageSize(pageSize);
+		buffer.setMetrics(new BufferMetrics());
+		// three pages ahead but only two fit into the budget
+		buffer.setReadahead(3, 2 * pageSize);
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 15; i++) {
+			writer.write(0, bb("test" + i));
+		}
+
+		IReadStream reader = buffer.getReadStream(0);
+		assertEquals("test0", str(reader.read()));
+		awaitPrefetched(buffer, 2);
+		Thread.sleep(20);
+		assertEquals(2, buffer.getMetrics().getPagesPrefetched());
+		// on the second page the window moves by one page
+		for (int i = 1; i < 4; i++) {
+			assertEquals("test" + i, str(reader.read()));
+		}
+		awaitPrefetched(buffer, 3);
+		for (int i = 4; i < 15; i++) {
+			assertEquals("test" + i, str(reader.read()));
+		}
+		// the last page is still written
+		Thread.sleep(20);
+		assertEquals(3, buffer.getMetrics().getPagesPrefetched());
+		reader.close();
+		writer.close();
+	}
+
+	private void awaitPrefetched(Buffer buffer, long pages) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while (buffer.getMetrics().getPagesPrefetched() < pages && System.currentTimeMillis() < end) {
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void wakeAllReadersTest() throws Exception {
+		final Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		// all readers wait for the first page
+		final AtomicInteger done = new AtomicInteger();
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++) {
+			final String name = "reader" + i;
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						IReadStream reader = buffer.getReadStream(name, 0);
+						if ("test".equals(str(reader.read()))) {
+							done.incrementAndGet();
+						}
+						reader.close();
+					} catch (IOException | InterruptedException ex) {
+						throw new CacheException("reader failed", ex);
+					}
+				}
+			};
+			readers[i].setDaemon(true);
+			readers[i].start();
+		}
+		Thread.sleep(50);
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("test"));
+		for (Thread reader : readers) {
+			reader.join(5000);
+		}
+		assertEquals(readers.length, done.get());
+		writer.close();
+	}
+
+	@Test
+	public void spanningChunkTest() throws IOException, InterruptedException {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setChunkTimestamps(true);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			big.append("chunk").append(i);
+		}
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(1, bb("small"));
+		writer.write(2, bb(big.toString()));
+		writer.writeBatch(3, new ByteBuffer[] { bb("a"), bb(big.toString()), bb("b") });
+		writer.write(4, bb("end"));
+
+		IReadStream reader = buffer.getReadStream("read", 0);
+		IReadStream batchReader = buffer.getReadStream("batch", 0);
+		// starts on a page in the middle of the first big chunk, its pieces there are skipped
+		IReadStream seekingReader = buffer.getReadStream(3);
+
+		assertEquals("small", str(reader.read()));
+		assertEquals(big.toString(), str(reader.read()));
+		assertEquals("a", str(reader.read()));
+		assertEquals(big.toString(), str(reader.read()));
+		assertEquals("b", str(reader.read()));
+		assertEquals("end", str(reader.read()));
+		reader.close();
+
+		SinglePageTest.CollectingHandler handler = new SinglePageTest.CollectingHandler();
+		while (handler.chunks.size() < 6) {
+			batchReader.readBatch(handler, 10);
+		}
+		assertEquals(big.toString(), handler.chunks.get(1));
+		assertEquals(big.toString(), handler.chunks.get(3));
+		assertEquals("end", handler.chunks.get(5));
+		batchReader.close();
+
+		assertEquals("a", str(seekingReader.read()));
+		assertEquals(big.toString(), str(seekingReader.read()));
+		seekingReader.close();
+		writer.close();
+	}
+
+	@Test(timeout = 120000)
+	public void maxChunkSizeTest() throws IOException, InterruptedException {
+		// the page holds the chunk, its size doesn't fit beside the fragment flags
+		int pageSize = PageMetadata.METADATA_SIZE + PageMetadata.MAX_CHUNK_SIZE + 1024;
+		// the reader joins the pieces into a heap buffer that doubles
+		Assume.assumeTrue(Runtime.getRuntime().maxMemory() > 3L * PageMetadata.MAX_CHUNK_SIZE + (64 << 20));
+		ByteBuffer huge = ByteBuffer.allocateDirect(PageMetadata.MAX_CHUNK_SIZE + 1);
+		huge.put(0, (byte) 1).put(huge.limit() - 1, (byte) 2);
+
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(pageSize);
+		IWriteStream writer = buffer.getWriteStream(0);
+		writer.writeBatch(1, new ByteBuffer[] { bb("a"), huge.duplicate(), bb("b") });
+		IReadStream reader = buffer.getReadStream(0);
+		assertEquals("a", str(reader.read()));
+		ByteBuffer chunk = reader.read();
+		assertEquals(huge.capacity(), chunk.remaining());
+		assertEquals(1, chunk.get(chunk.position()));
+		assertEquals(2, chunk.get(chunk.limit() - 1));
+		chunk = null;
+		assertEquals("b", str(reader.read()));
+		reader.close();
+		writer.close();
+
+		File sharedDir = new File(cacheDir, "shared");
+		sharedDir.mkdir();
+		Buffer shared = new Buffer();
+		shared.setCacheDir(sharedDir);
+		shared.setPageSize(pageSize);
+		shared.setMultiProducer(true);
+		writer = shared.getWriteStream(0);
+		try {
+			writer.write(1, huge.duplicate());
+			fail("many producers can't fragment a chunk");
+		} catch (CacheException expected) {
+		}
+		writer.close();
+		// cleanup() only deletes the files of the cache dir
+		for (File file : sharedDir.listFiles()) {
+			file.delete();
+		}
+		sharedDir.delete();
+	}
+
+	@Test(timeout = 60000)
+	public void sharedSpoolTest() throws Exception {
+		final int chunkCount = 2000;
+		// one reader in another JVM and one in this one, both start before the writer
+		Process readerProcess = SharedSpoolLatency.spawn("remote", cacheDir, chunkCount);
+		SharedSpoolLatency.awaitReader(cacheDir, "remote");
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setSharedSpool(true);
+		assertFalse(buffer.isWriterAlive());
+
+		Process writerProcess = SharedSpoolLatency.spawn(SharedSpoolLatency.WRITER, cacheDir, chunkCount);
+		IReadStream reader = buffer.getReadStream("local", 0);
+		ByteBuffer first = reader.read();
+		first.getLong();
+		assertEquals(0, first.getInt());
+		assertTrue(buffer.isWriterAlive());
+		long[] latencies = SharedSpoolLatency.read(reader, 1, chunkCount);
+		// each chunk is stamped before it is written, a reader that misses the doorbell still wakes after its max wait
+		for (long latency : latencies) {
+			assertTrue(latency >= 0);
+		}
+		assertTrue(SharedSpoolLatency.percentile(latencies, 0.5) < TimeUnit.SECONDS.toNanos(1));
+
+		assertEquals(SharedSpoolLatency.output(cacheDir, SharedSpoolLatency.WRITER), 0, writerProcess.waitFor());
+		assertEquals(SharedSpoolLatency.output(cacheDir, "remote"), 0, readerProcess.waitFor());
+		// the writer left the control file when it closed
+		assertFalse(buffer.isWriterAlive());
+		assertTrue(buffer.controlFile.getTail() > 0);
+		reader.close();
+	}
+
+	@Test
+	public void sharedSpoolWriterTest() throws Exception {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setSharedSpool(true);
+		Buffer other = new Buffer();
+		other.setCacheDir(cacheDir);
+		other.setSharedSpool(true);
+
+		IWriteStream writer = buffer.getWriteStream(0);
+		try {
+			other.getWriteStream(0);
+			fail("a second writer in the same process");
+		} catch (CacheException expected) {
+		}
+		long sequence = buffer.controlFile.sequence();
+		writer.write(1, bb("a"));
+		writer.write(2, bb("b"));
+		assertEquals(sequence + 2, buffer.controlFile.sequence());
+		assertEquals(2, other.controlFile.sequence() - sequence);
+		// closing the refused writer must not release the spool of the first one
+		other.controlFile.closeWriter();
+		assertTrue(buffer.isWriterAlive());
+		writer.close();
+		assertFalse(buffer.isWriterAlive());
+
+		Buffer restarted = new Buffer();
+		restarted.setCacheDir(cacheDir);
+		restarted.setSharedSpool(true);
+		writer = restarted.getWriteStream(0);
+		writer.write(3, bb("c"));
+		writer.close();
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setChunkTimestamps(true);
+		// two chunks per page
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 24);
+		BufferMetrics metrics = new BufferMetrics();
+		buffer.setMetrics(metrics);
+		metrics.register("metricsTest");
+		try {
+			long now = System.currentTimeMillis();
+			IWriteStream writer = buffer.getWriteStream(now);
+			for (int i = 0; i < 6; i++) {
+				writer.write(now, bb("c" + i));
+			}
+			IReadStream reader = buffer.getReadStream(now);
+			for (int i = 0; i < 4; i++) {
+				assertEquals("c" + i, str(reader.read()));
+			}
+			final AtomicInteger batch = new AtomicInteger();
+			assertEquals(2, reader.readBatch(new ChunkHandler() {
+				@Override
+				public void onChunk(ByteBuffer page, int offset, int length) {
+					batch.incrementAndGet();
+				}
+			}, 10));
+			assertEquals(2, batch.get());
+
+			assertEquals(12, metrics.getBytesWritten());
+			assertEquals(6, metrics.getChunksWritten());
+			assertEquals(12, metrics.getBytesRead());
+			assertEquals(6, metrics.getChunksRead());
+			assertEquals(3, metrics.getPagesCreated());
+			assertEquals(2, metrics.getPagesDeleted());
+			assertEquals(6, metrics.getWriteTime().getCount());
+			assertEquals(2, metrics.getRolloverTime().getCount());
+			assertEquals(6, metrics.getEndToEndLatency().getCount());
+
+			// the same numbers in JMX
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = metrics.getObjectName();
+			assertEquals(6L, server.getAttribute(name, "ChunksWritten"));
+			CompositeData writeTime = (CompositeData) server.getAttribute(name, "WriteTime");
+			assertEquals(6L, writeTime.get("count"));
+			reader.close();
+			writer.close();
+		} finally {
+			metrics.unregister();
+		}
+		assertEquals(false, ManagementFactory.getPlatformMBeanServer().isRegistered(
+				new ObjectName("buffer:type=Buffer,name=\"metricsTest\"")));
+	}
+
+	@Test
+	public void latencyHistogramTest() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500.0, histogram.getMean(), 0.1);
+		// buckets are at most 1/16 wide
+		assertEquals(500000.0, histogram.getValueAtPercentile(50), 500000 / 16);
+		assertEquals(990000.0, histogram.getValueAtPercentile(99), 990000 / 16);
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+		for (long value : new long[] {0, 1, 31, 32, 33, 1000, Long.MAX_VALUE}) {
+			int bucket = LatencyHistogram.bucket(value);
+			assertEquals(true, value <= LatencyHistogram.highestValue(bucket));
+			assertEquals(true, bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+		}
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+	}
+
+	@Test(timeout = 30000)
+	public void publisherTest() throws Exception {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		IWriteStream writer = buffer.getWriteStream(0);
+		for (int i = 0; i < 5; i++) {
+			writer.write(0, bb("c" + i));
+		}
+		IReadStream reader = buffer.getReadStream(0);
+		// nothing is waited for
+		assertEquals(1, reader.pollBatch(new ChunkHandler() {
+			@Override
+			public void onChunk(ByteBuffer page, int offset, int length) {
+			}
+		}, 1));
+
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		// the writer only wakes the idle subscription, it never calls the executor itself
+		final AtomicReference<Thread> writing = new AtomicReference<>();
+		final AtomicInteger executedOnWriter = new AtomicInteger();
+		Executor checkingExecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (Thread.currentThread() == writing.get()) {
+					executedOnWriter.incrementAndGet();
+				}
+				executor.execute(command);
+			}
+		};
+		final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		try {
+			ChunkPublisher publisher = new ChunkPublisher(buffer, reader, checkingExecutor);
+			publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+				@Override
+				public void onSubscribe(Flow.Subscription s) {
+					subscription.set(s);
+				}
+
+				@Override
+				public void onNext(ByteBuffer chunk) {
+					received.add(str(chunk));
+				}
+
+				@Override
+				public void onError(Throwable ex) {
+					error.set(ex);
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			});
+			subscription.get().request(3);
+			for (int i = 1; i < 4; i++) {
+				assertEquals("c" + i, received.poll(5, TimeUnit.SECONDS));
+			}
+			// no more than requested
+			assertEquals(null, received.poll(50, TimeUnit.MILLISECONDS));
+
+			subscription.get().request(10);
+			assertEquals("c4", received.poll(5, TimeUnit.SECONDS));
+			// the subscription is idle now, the writer wakes it up
+			assertEquals(null, received.poll(50, TimeUnit.MILLISECONDS));
+			writing.set(Thread.currentThread());
+			writer.write(0, bb("c5"));
+			writer.write(0, bb("c6"));
+			writing.set(null);
+			assertEquals("c5", received.poll(5, TimeUnit.SECONDS));
+			assertEquals("c6", received.poll(5, TimeUnit.SECONDS));
+			assertEquals(0, executedOnWriter.get());
+
+			// a second subscriber is refused
+			final AtomicReference<Throwable> refused = new AtomicReference<>();
+			publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+				@Override
+				public void onSubscribe(Flow.Subscription s) {
+				}
+
+				@Override
+				public void onNext(ByteBuffer chunk) {
+				}
+
+				@Override
+				public void onError(Throwable ex) {
+					refused.set(ex);
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			});
+			assertTrue(refused.get() instanceof IllegalStateException);
+
+			// cancel closes the read stream, so another one can be opened
+			subscription.get().cancel();
+			IReadStream next = null;
+			while (next == null) {
+				try {
+					next = buffer.getReadStream(0);
+				} catch (CacheException ex) {
+					Thread.sleep(10);
+				}
+			}
+			writer.write(0, bb("c7"));
+			assertEquals(null, received.poll(50, TimeUnit.MILLISECONDS));
+			assertEquals(null, error.get());
+			next.close();
+		} finally {
+			executor.shutdown();
+		}
+		writer.close();
+	}
+
+
+
+	@Test(timeout = 30000)
+	public void publisherSpanningChunkTest() throws Exception {
+		Buffer buffer = new Buffer();
+		buffer.setCacheDir(cacheDir);
+		buffer.setPageSize(PageMetadata.METADATA_SIZE + 36);
+		final IWriteStream writer = buffer.getWriteStream(0);
+		writer.write(0, bb("c0"));
+		IReadStream reader = buffer.getReadStream(0);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+		try {
+			new ChunkPublisher(buffer, reader, executor).subscribe(new Flow.Subscriber<ByteBuffer>() {
+				@Override
+				public void onSubscribe(Flow.Subscription s) {
+					subscription.set(s);
+				}
+
+				@Override
+				public void onNext(ByteBuffer chunk) {
+					received.add(str(chunk));
+				}
+
+				@Override
+				public void onError(Throwable ex) {
+					received.add("error: " + ex);
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			});
+			subscription.get().request(10);
+			assertEquals("c0", received.poll(5, TimeUnit.SECONDS));
+
+			// the writer stops after the first piece of a chunk that spans pages
+			final CountDownLatch firstPiece = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final AtomicBoolean armed = new AtomicBoolean(true);
+			buffer.addPublishListener(new Runnable() {
+				@Override
+				public void run() {
+					if (armed.compareAndSet(true, false)) {
+						firstPiece.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				}
+			});
+			StringBuilder big = new StringBuilder();
+			for (int i = 0; i < 20; i++) {
+				big.append("chunk").append(i);
+			}
+			final String spanning = big.toString();
+			Thread writerThread = new Thread() {
+				@Override
+				public void run() {
+					writer.write(1, bb(spanning));
+				}
+			};
+			writerThread.start();
+			assertTrue(firstPiece.await(5, TimeUnit.SECONDS));
+			// the subscription reads the first piece and gives the executor back
+			Thread.sleep(50);
+			assertEquals(Boolean.TRUE, executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return true;
+				}
+			}).get(5, TimeUnit.SECONDS));
+			assertEquals(null, received.poll());
+
+			release.countDown();
+			writerThread.join();
+			assertEquals(spanning, received.poll(5, TimeUnit.SECONDS));
+			writer.write(2, bb("c2"));
+			assertEquals("c2", received.poll(5, TimeUnit.SECONDS));
+			subscription.get().cancel();
+		} finally {
+			executor.shutdown();
+		}
+		writer.close();
+	}
+
+	@Test(timeout = 300000)
+	public void manyReadersTest() throws Exception {
+		// 10k readers on virtual threads if the JVM has them, fewer platform threads otherwise
+		ThreadFactory factory = virtualThreadFactory();
+		boolean virtual = factory != null;
+		if (!virtual) {
+			factory = Executors.defaultThreadFactory();
+		}
+		int bufferCount = virtual ? 100 : 20;
+		int readerCount = virtual ? 100 : 50;
+		final int chunkCount = 10;
+
+		Buffer[] buffers = new Buffer[bufferCount];
+		File[] dirs = new File[bufferCount];
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(bufferCount * readerCount);
+		try {
+			for (int b = 0; b < bufferCount; b++) {
+				dirs[b] = new File(cacheDir, "spool" + b);
+				dirs[b].mkdir();
+				final Buffer buffer = new Buffer();
+				buffer.setCacheDir(dirs[b]);
+				buffer.setPageSize(64 * 1024);
+				// readers sleep on a condition, nothing pins a virtual thread
+				buffer.setWaitStrategy(new BlockingWaitStrategy());
+				buffers[b] = buffer;
+				for (int r = 0; r < readerCount; r++) {
+					final String name = "reader" + r;
+					factory.newThread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								// blocks till the writer created the first page
+								IReadStream reader = buffer.getReadStream(name, 0);
+								for (int i = 0; i < chunkCount; i++) {
+									if (!("c" + i).equals(str(reader.read()))) {
+										failures.incrementAndGet();
+									}
+								}
+								reader.close();
+							} catch (Exception ex) {
+								ex.printStackTrace();
+								failures.incrementAndGet();
+							} finally {
+								done.countDown();
+							}
+						}
+					}).start();
+				}
+			}
+			for (Buffer buffer : buffers) {
+				IWriteStream writer = buffer.getWriteStream(0);
+				for (int i = 0; i < chunkCount; i++) {
+					writer.write(0, bb("c" + i));
+				}
+				writer.close();
+			}
+			done.await();
+			assertEquals(0, failures.get());
+
+			// one thread finds the pages of all buffers
+			int pollers = 0;
+			for (Thread thread : Thread.getAllStackTraces().keySet()) {
+				if ("CachePageDirectory".equals(thread.getName())) {
+					pollers++;
+				}
+			}
+			assertEquals(1, pollers);
+		} finally {
+			for (File dir : dirs) {
+				File[] files = dir == null ? null : dir.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				if (dir != null) {
+					dir.delete();
+				}
+			}
+		}
+	}
+
+	// Thread.ofVirtual().factory() on java 21, null before
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
 
 
 	static class ReaderThread extends Thread {
@@ -359,7 +1956,7 @@ public class SimpleBufferTest {
 			// print stats for the reading side:
 			if ((incomingCount.get() % 1_000) == 0) {
 				double mByte = incomingAmount.get() / (double)(1024 * 1024);
-				double mBps = mByte / (double) ((System.currentTimeMillis() - start) / 1000d);
+				double mBps = mByte / ((System.currentTimeMillis() - start) / 1000d);
 				System.out.printf(" Speed: %.2f [MByte/sec]\n", mBps);
 			}
 		}
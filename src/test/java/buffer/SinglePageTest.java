@@ -7,6 +7,9 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.After;
@@ -354,6 +357,595 @@ public class SinglePageTest {
 
 	}
 
+	@Test
+	public void batchWrite() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1);
+		write.open();
+		ByteBuffer[] batch = new ByteBuffer[] { bb("test1data"), bb(""), bb("2"), bb("maultaschen") };
+		assertEquals(4, write.chunksForWrite(batch, 0, batch.length));
+		write.write(batch, 0, batch.length);
+		assertEquals(0, batch[0].remaining());
+		assertEquals(0, batch[3].remaining());
+		assertEquals(70
+				- PageMetadata.INT_SIZE - "test1data".getBytes().length
+				- PageMetadata.INT_SIZE - "2".getBytes().length
+				- PageMetadata.INT_SIZE - "maultaschen".getBytes().length
+				- PageMetadata.INT_SIZE
+				- PageMetadata.INT_SIZE,
+				write.remainingForWrite());
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals("test1data", str(read.read()));
+		assertEquals("2", str(read.read()));
+		assertEquals("maultaschen", str(read.read()));
+		assertEquals("", str(read.read()));
+		read.close();
+		write.close();
+	}
+
+	@Test
+	public void batchWriteIntoFullPage() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 30, 1, 1);
+		write.open();
+		ByteBuffer[] batch = new ByteBuffer[] { bb("12345"), bb("12345"), bb("12345") };
+		// 4 + 5 + 4 + 5 + 4 EOF fit into 30 byte, the third chunk doesn't
+		assertEquals(2, write.chunksForWrite(batch, 0, batch.length));
+		assertEquals(1, write.chunksForWrite(batch, 2, 1));
+
+		write.write(batch, 0, batch.length);
+		for (ByteBuffer buffer : batch) {
+			assertEquals(5, buffer.remaining()); // nothing written
+		}
+		assertEquals(0, write.remainingForWrite());
+		assertEquals(0, write.chunksForWrite(batch, 0, 1));
+		write.close();
+	}
+
+	@Test
+	public void batchRead() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1);
+		write.open();
+		write.write(bb("test1data"));
+		write.write(bb("2"));
+		write.write(bb("maultaschen"));
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(2, read.read(handler, 2));
+		assertEquals("test1data", handler.chunks.get(0));
+		assertEquals("2", handler.chunks.get(1));
+		assertEquals(1, read.read(handler, 10));
+		assertEquals("maultaschen", handler.chunks.get(2));
+		assertEquals(0, read.read(handler, 10));
+
+		write.write(bb("bretzel"));
+		assertEquals(1, read.read(handler, 10));
+		assertEquals("bretzel", handler.chunks.get(3));
+		// mixing single and batch reads
+		write.write(bb("hüzel"));
+		write.write(bb("brützel"));
+		assertEquals("hüzel", str(read.read()));
+		assertEquals(1, read.read(handler, 10));
+		assertEquals("brützel", handler.chunks.get(4));
+		read.close();
+		write.close();
+	}
+
+	@Test
+	public void flushPolicy() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1, FlushPolicy.everyBytes(20));
+		write.open();
+		write.write(bb("123456789"));
+		assertEquals(0, write.flushed());
+		write.write(bb("123456789"));
+		// two chunks and the size of the next one
+		assertEquals(2 * (PageMetadata.INT_SIZE + 9) + PageMetadata.INT_SIZE, write.flushed());
+		write.close();
+		file.delete();
+
+		write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1, FlushPolicy.everyWrite());
+		write.open();
+		write.write(bb("1"));
+		assertEquals(PageMetadata.INT_SIZE + 1 + PageMetadata.INT_SIZE, write.flushed());
+		write.close();
+		file.delete();
+
+		write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1, FlushPolicy.never());
+		write.open();
+		write.write(bb("1"));
+		write.flush();  // explicit flush still works
+		assertEquals(PageMetadata.INT_SIZE + 1 + PageMetadata.INT_SIZE, write.flushed());
+		write.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals("1", str(read.read()));
+		read.close();
+	}
+
+	@Test
+	public void sharedFlushPolicy() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1, FlushPolicy.everyWrite());
+		write.open().share();
+		int bytes = PageMetadata.INT_SIZE + 1;
+		long first = write.reserve(bytes, 1);
+		long second = write.reserve(bytes, 1);
+		write.publish(second, 1, bb("2"));
+		// the first chunk is still copied, it doesn't count as flushed
+		assertEquals(first, write.flushed());
+		write.publish(first, 1, bb("1"));
+		assertEquals(2 * bytes, write.flushed());
+		write.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals("1", str(read.read()));
+		assertEquals("2", str(read.read()));
+		read.close();
+	}
+
+	@Test
+	public void unmapRetiredPages() throws IOException {
+		Unmapper.drain();  // leftovers from other tests
+		long mappedBytes = Unmapper.getMappedBytes();
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1);
+		write.open();
+		write.write(bb("testdata"));
+		// metadata plus the next chunk size and the page content
+		assertEquals(PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE + 70,
+				Unmapper.getMappedBytes() - mappedBytes);
+		write.close();
+		// nothing is unmapped before the grace period is over
+		assertEquals(true, Unmapper.getRetiredBytes() >= PageMetadata.METADATA_SIZE + PageMetadata.INT_SIZE + 70);
+
+		long unmapped = Unmapper.getUnmappedCount();
+		Unmapper.drain();
+		assertEquals(0, Unmapper.getRetiredBytes());
+		assertEquals(mappedBytes, Unmapper.getMappedBytes());
+		if (Unmapper.isUnmapSupported()) {
+			assertEquals(true, Unmapper.getUnmappedCount() >= unmapped + 2);
+		}
+	}
+
+	@Test
+	public void chunkTimestamps() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 100, 1,
+				FlushPolicy.onPageClose(), PageMetadata.TIMESTAMPED_CHUNKS);
+		write.open();
+		write.write(100, bb("a"));
+		write.write(105, bb("b"));
+		write.write(new ByteBuffer[] { bb("c"), bb("d") }, 0, 2);
+		write.write(110, new ByteBuffer[] { bb("e"), bb("f") }, 0, 2);
+		assertEquals(70
+				- 6 * (PageMetadata.INT_SIZE + PageMetadata.INT_SIZE + 1)  // size, timestamp, content
+				- PageMetadata.INT_SIZE                                    // next size
+				- PageMetadata.INT_SIZE                                    // next timestamp
+				- PageMetadata.INT_SIZE,                                   // potential EOF
+				write.remainingForWrite());
+		// the delta to the page timestamp needs to fit into an int
+		assertEquals(true, write.accepts(100L + Integer.MAX_VALUE));
+		assertEquals(false, write.accepts(101L + Integer.MAX_VALUE));
+		write.write(101L + Integer.MAX_VALUE, bb("g"));
+		assertEquals(0, write.remainingForWrite());
+		write.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals(true, read.hasChunkTimestamps());
+		assertEquals(true, read.seek(105));
+		assertEquals("b", str(read.read()));
+		// chunks written without a timestamp use the page timestamp
+		assertEquals(true, read.seek(106));
+		assertEquals("e", str(read.read()));
+		assertEquals("f", str(read.read()));
+		assertEquals(false, read.seek(0));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+
+		read = new ReadPage(file);
+		read.open();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(6, read.read(handler, 10));
+		assertEquals("[a, b, c, d, e, f]", handler.chunks.toString());
+		read.close();
+	}
+
+	@Test
+	public void seekIndex() throws IOException {
+		int count = 20000;
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 512 * 1024, 1000, 1,
+				FlushPolicy.never(), PageMetadata.TIMESTAMPED_CHUNKS);
+		write.open();
+		for (int i = 0; i < count; i++) {
+			write.write(1000 + i, bb(String.format("%08d", i)));
+		}
+		write.close();
+
+		ReadPage page = new ReadPage(file);
+		ReadPage read = new ReadPage(page).open();
+		assertEquals(true, read.seek(1000 + 15000));
+		assertEquals("00015000", str(read.read()));
+		read.close();
+		// 16 bytes per chunk, the walk passed four strides
+		assertEquals(15000 * 16 / ReadPage.ChunkIndex.STRIDE, page.indexedChunks());
+
+		// other readers of the page start their walk at the index
+		read = new ReadPage(page).open();
+		assertEquals(true, read.seek(1000 + 10000));
+		assertEquals("00010000", str(read.read()));
+		assertEquals(true, read.seek(1000 + 19999));
+		assertEquals("00019999", str(read.read()));
+		assertEquals(false, read.seek(1000 + count));
+		read.close();
+		read = new ReadPage(page).open();
+		assertEquals(true, read.seek(1005));
+		assertEquals("00000005", str(read.read()));
+		read.close();
+		page.release();
+	}
+
+	@Test
+	public void plainChunksIgnoreSeek() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 100, 1);
+		write.open();
+		write.write(200, bb("a"));
+		write.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals(false, read.hasChunkTimestamps());
+		assertEquals(true, read.seek(300));
+		assertEquals("a", str(read.read()));
+		read.close();
+	}
+
+	@Test
+	public void lz4RoundTrip() {
+		Lz4Codec codec = new Lz4Codec();
+		Random random = new Random(17);
+		for (int length : new int[] { 0, 1, 12, 13, 100, 4096, 70000 }) {
+			byte[] noise = new byte[length];
+			random.nextBytes(noise);
+			StringBuilder text = new StringBuilder();
+			while (text.length() < length) {
+				text.append("{\"id\":").append(random.nextInt(100)).append(",\"name\":\"event\"}");
+			}
+			byte[] json = text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+			for (byte[] raw : new byte[][] { noise, json }) {
+				byte[] compressed = new byte[Lz4Codec.maxCompressedLength(length) + 3];
+				int size = codec.compress(raw, 0, length, compressed, 3);
+				assertEquals(true, size <= Lz4Codec.maxCompressedLength(length));
+				byte[] result = new byte[length];
+				Lz4Codec.decompress(compressed, 3, size, result, 0, length);
+				assertArrayEquals(raw, result);
+				if (raw == json && length >= 4096) {
+					assertEquals(true, size * 4 < length);
+				}
+			}
+		}
+		try {
+			Lz4Codec.decompress(new byte[] { (byte) 0xF0, 1 }, 0, 2, new byte[10], 0, 10);
+			fail("corrupt block accepted");
+		} catch (CacheException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void compressedPage() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 8000, 100, 1,
+				FlushPolicy.never(), PageMetadata.TIMESTAMPED_CHUNKS, PageMetadata.LZ4_CODEC);
+		write.open();
+		for (int i = 0; i < 10; i++) {
+			write.write(100 + i, bb("chunk-chunk-chunk-" + i));
+		}
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		// nothing is visible before the block is written
+		assertEquals("", str(read.read()));
+		write.flush();
+		assertEquals("chunk-chunk-chunk-0", str(read.read()));
+		assertEquals(true, read.seek(103));
+		long position = read.position();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(2, read.read(handler, 2));
+		assertEquals("[chunk-chunk-chunk-3, chunk-chunk-chunk-4]", handler.chunks.toString());
+		// continue in the middle of a block
+		read.position(position);
+		assertEquals("chunk-chunk-chunk-3", str(read.read()));
+
+		write.write(200, bb("last"));
+		write.close();
+		assertEquals(6, read.read(new CollectingHandler(), 6));
+		assertEquals("last", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void compressedPageFull() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 200, 1, 1,
+				FlushPolicy.never(), PageMetadata.PLAIN_CHUNKS, PageMetadata.LZ4_CODEC);
+		write.open();
+		Random random = new Random(3);
+		List<String> written = new ArrayList<>();
+		while (true) {
+			// random chunks don't compress, the page still must not overflow
+			byte[] bytes = new byte[10];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) ('a' + random.nextInt(26));
+			}
+			if (write.remainingForWrite() < bytes.length) {
+				break;
+			}
+			write.write(ByteBuffer.wrap(bytes));
+			written.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		write.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		CollectingHandler handler = new CollectingHandler();
+		read.read(handler, 1000);
+		assertEquals(written, handler.chunks);
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void recoverPlainPage() throws IOException {
+		WritePage crashed = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 1, 1);
+		crashed.open();
+		crashed.write(bb("one"));
+		crashed.write(bb("two"));
+		// a chunk that was never committed and one that claims more than the page holds
+		int end = 2 * (PageMetadata.INT_SIZE + 3);
+		writeRaw(end + PageMetadata.INT_SIZE, bb("garbage"));
+		WritePage recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		recovered.write(bb("three"));
+		writeRaw(end + PageMetadata.INT_SIZE + 5, ByteBuffer.allocate(4).putInt(0, 1000));
+		recovered.close();
+
+		recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(false, recovered.recover());  // sealed
+		recovered.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals("one", str(read.read()));
+		assertEquals("two", str(read.read()));
+		assertEquals("three", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void recoverTornChunk() throws IOException {
+		WritePage crashed = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 1, 1);
+		crashed.open();
+		crashed.write(bb("one"));
+		// the size made it to the page but the chunk would overrun it
+		writeRaw(PageMetadata.INT_SIZE + 3, ByteBuffer.allocate(4).putInt(0, 90));
+		WritePage recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		recovered.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		assertEquals("one", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void recoverCompressedPage() throws IOException {
+		WritePage crashed = new WritePage(file, PageMetadata.METADATA_SIZE + 8000, 100, 1,
+				FlushPolicy.never(), PageMetadata.TIMESTAMPED_CHUNKS, PageMetadata.LZ4_CODEC);
+		crashed.open();
+		for (int i = 0; i < 10; i++) {
+			crashed.write(100 + i, bb("chunk-chunk-chunk-" + i));
+		}
+		crashed.flush();
+		crashed.write(110, bb("pending"));  // lost with the block that was never written
+		WritePage recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		ReadPage committed = new ReadPage(file).open();
+		assertEquals(10, committed.read(new CollectingHandler(), 100));
+		int end = (int) (committed.position() >>> 32);
+		committed.close();
+		// a block header whose data doesn't decompress
+		ByteBuffer torn = ByteBuffer.allocate(16);
+		torn.putInt(0, 8).putInt(4, 100).putInt(8, 0x7fffffff);
+		writeRaw(end, torn);
+		recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		recovered.write(120, bb("after"));
+		recovered.close();
+
+		ReadPage read = new ReadPage(file);
+		read.open();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(11, read.read(handler, 100));
+		assertEquals("chunk-chunk-chunk-9", handler.chunks.get(9));
+		assertEquals("after", handler.chunks.get(10));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void crc32c() {
+		assertEquals(0xE3069283, Crc32c.checksum(bb("123456789")));
+		assertEquals(0xE3069283, Crc32c.checksumJava(bb("123456789"), 0, 9));
+		assertEquals(0, Crc32c.checksum(bb("")));
+		Random random = new Random(1);
+		ByteBuffer direct = ByteBuffer.allocateDirect(1000);
+		for (int i = 0; i < 1000; i++) {
+			direct.put(i, (byte) random.nextInt());
+		}
+		for (int offset = 0; offset < 9; offset++) {
+			for (int length = 0; length < 990; length += 1 + random.nextInt(37)) {
+				assertEquals(Crc32c.checksumJava(direct, offset, length), Crc32c.checksum(direct, offset, length));
+			}
+		}
+		assertEquals(0, direct.position());
+	}
+
+	@Test
+	public void checksummedChunks() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 100, 1,
+				FlushPolicy.never(), PageMetadata.version(true, true));
+		write.open();
+		write.write(100, bb("a"));
+		write.write(105, bb("bb"));
+		write.write(110, bb("ccc"));
+		write.close();
+
+		ReadPage read = new ReadPage(file).verify(VerifyPolicy.fail(), null).open();
+		assertEquals(true, read.hasChunkTimestamps());
+		assertEquals(true, read.seek(105));
+		assertEquals("bb", str(read.read()));
+		assertEquals(105, read.lastChunkTimestamp());
+		assertEquals("ccc", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+
+		read = new ReadPage(file).verify(VerifyPolicy.fail(), null).open();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(3, read.read(handler, 10));
+		assertEquals("[a, bb, ccc]", handler.chunks.toString());
+		read.close();
+	}
+
+	@Test
+	public void corruptChunk() throws IOException {
+		int headerSize = PageMetadata.headerSize(PageMetadata.version(false, true));
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 100, 1,
+				FlushPolicy.never(), PageMetadata.version(false, true));
+		write.open();
+		write.write(bb("one"));
+		write.write(bb("two"));
+		write.write(bb("three"));
+		write.close();
+		writeRaw(headerSize + 3 + headerSize, bb("X"));
+
+		ReadPage read = new ReadPage(file).verify(VerifyPolicy.fail(), null).open();
+		assertEquals("one", str(read.read()));
+		try {
+			read.read();
+			fail("corrupt chunk returned");
+		} catch (CacheException ex) {
+			// expected
+		}
+		read.close();
+
+		BufferMetrics metrics = new BufferMetrics();
+		read = new ReadPage(file).verify(VerifyPolicy.skip(), metrics).open();
+		assertEquals("one", str(read.read()));
+		assertEquals("three", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+		assertEquals(1, metrics.getCorruptChunks());
+
+		read = new ReadPage(file).verify(VerifyPolicy.skip(), metrics).open();
+		CollectingHandler handler = new CollectingHandler();
+		assertEquals(2, read.read(handler, 10));
+		assertEquals("[one, three]", handler.chunks.toString());
+		read.close();
+		assertEquals(2, metrics.getCorruptChunks());
+
+		// only the recovery checks the checksums
+		read = new ReadPage(file).verify(VerifyPolicy.recoveryOnly(), metrics).open();
+		assertEquals("one", str(read.read()));
+		assertEquals("Xwo", str(read.read()));
+		read.close();
+	}
+
+	@Test
+	public void corruptChunkSize() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 1, 1);
+		write.open();
+		write.write(bb("one"));
+		write.close();
+		writeRaw(0, ByteBuffer.allocate(4).putInt(0, 1000));
+
+		ReadPage read = new ReadPage(file).open();
+		try {
+			read.read();
+			fail("chunk beyond the page returned");
+		} catch (CacheException ex) {
+			// expected
+		}
+		read.close();
+	}
+
+	@Test
+	public void recoverChecksummedChunk() throws IOException {
+		int headerSize = PageMetadata.headerSize(PageMetadata.version(false, true));
+		WritePage crashed = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 1, 1,
+				FlushPolicy.never(), PageMetadata.version(false, true));
+		crashed.open();
+		crashed.write(bb("one"));
+		crashed.write(bb("two"));
+		// the size of the second chunk made it to the page but not all of its payload
+		writeRaw(headerSize + 3 + headerSize, bb("X"));
+		WritePage recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		recovered.write(bb("after"));
+		recovered.close();
+
+		ReadPage read = new ReadPage(file).verify(VerifyPolicy.fail(), null).open();
+		assertEquals("one", str(read.read()));
+		assertEquals("after", str(read.read()));
+		assertEquals(true, read.isReadComplete());
+		read.close();
+	}
+
+	@Test
+	public void fragments() throws IOException {
+		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 100, 1, 1);
+		write.open();
+		write.write(bb("one"));
+		write.writeFragment(1, bb("first"), PageMetadata.MORE_FRAGMENTS);
+		write.writeFragment(1, bb("middle"), PageMetadata.CONTINUATION | PageMetadata.MORE_FRAGMENTS);
+		write.writeFragment(1, bb("last"), PageMetadata.CONTINUATION);
+		// the pieces survive a crash like any other chunk
+		WritePage recovered = new WritePage(file, FlushPolicy.never());
+		assertEquals(true, recovered.recover());
+		recovered.write(bb("two"));
+		recovered.close();
+
+		ReadPage read = new ReadPage(file).open();
+		CollectingHandler handler = new CollectingHandler();
+		// batches stop in front of the pieces
+		assertEquals(1, read.read(handler, 10));
+		assertEquals(true, read.atFragment());
+		assertEquals("first", str(read.read()));
+		assertEquals(true, read.isFragment());
+		assertEquals(false, read.isContinuation());
+		assertEquals("middle", str(read.read()));
+		assertEquals(true, read.isFragment());
+		assertEquals(true, read.isContinuation());
+		assertEquals("last", str(read.read()));
+		assertEquals(false, read.isFragment());
+		assertEquals(true, read.isContinuation());
+		assertEquals(false, read.atFragment());
+		assertEquals("two", str(read.read()));
+		assertEquals(false, read.isContinuation());
+		read.close();
+	}
+
+	// writes behind the metadata of the page like a writer that died halfway
+	private void writeRaw(int offset, ByteBuffer data) throws IOException {
+		try (java.io.RandomAccessFile rand = new java.io.RandomAccessFile(file, "rw")) {
+			rand.seek(PageMetadata.METADATA_SIZE + offset);
+			rand.write(data.array(), 0, data.limit());
+		}
+	}
+
 	@Test
 	public void readEmpty() throws IOException, InterruptedException {
 		WritePage write = new WritePage(file, PageMetadata.METADATA_SIZE + 70, 1, 1);
@@ -593,9 +1185,22 @@ public class SinglePageTest {
 		}
 	}
 
+	static class CollectingHandler implements ChunkHandler {
+		final List<String> chunks = new ArrayList<>();
+
+		@Override
+		public void onChunk(ByteBuffer page, int offset, int length) {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = page.get(offset + i);
+			}
+			chunks.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+	}
+
 	// offset = pos = 0; cap = limit = size;
 	static ByteBuffer bb(String string) {
-		ByteBuffer buffer = ByteBuffer.wrap(string.getBytes());
+		ByteBuffer buffer = ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8));
 		buffer.rewind();
 		return buffer;
 	}
@@ -604,7 +1209,7 @@ public class SinglePageTest {
 		int size = buffer.limit() - buffer.position();
 		byte[] bytes = new byte[size];
 		buffer.get(bytes, 0, size);
-		return new String(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
 	}
 
 	void assertBufferEquals(ByteBuffer expected, ByteBuffer actual) {
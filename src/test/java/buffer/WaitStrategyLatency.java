@@ -0,0 +1,77 @@
+package buffer;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * measures the writer to reader latency for each wait strategy,
+ * the writer puts System.nanoTime() into each chunk and the reader computes the delta
+ */
+public class WaitStrategyLatency {
+
+	public static void main(String[] args) throws Exception {
+
+		final String cachedir = System.getProperty("java.io.tmpdir") + "/latency";
+		final int pagesize = 50 * 1024 * 1024;
+		final int chunkCount = 20_000;
+		// pause between writes so the reader actually goes idle
+		final long pauseNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+		WaitStrategy[] strategies = new WaitStrategy[] {
+				new BusySpinWaitStrategy(),
+				new YieldingWaitStrategy(),
+				new ParkingWaitStrategy(),
+				new BlockingWaitStrategy() };
+
+		for (WaitStrategy strategy : strategies) {
+			File dir = new File(cachedir, strategy.getClass().getSimpleName());
+			dir.mkdirs();
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+
+			final Buffer buff = new Buffer();
+			buff.setCacheDir(dir);
+			buff.setPageSize(pagesize);
+			buff.setWaitStrategy(strategy);
+
+			final IWriteStream writeStream = buff.getWriteStream(0);
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					ByteBuffer chunk = ByteBuffer.allocate(8);
+					for (int i = 0; i < chunkCount; i++) {
+						LockSupport.parkNanos(pauseNanos);
+						chunk.clear();
+						chunk.putLong(System.nanoTime());
+						chunk.flip();
+						writeStream.write(System.currentTimeMillis(), chunk);
+					}
+				}
+			};
+
+			IReadStream readStream = buff.getReadStream(0);
+			long[] latencies = new long[chunkCount];
+			writer.start();
+			for (int i = 0; i < chunkCount; i++) {
+				ByteBuffer result = readStream.read();
+				latencies[i] = System.nanoTime() - result.getLong();
+			}
+			writer.join();
+			writeStream.close();
+			readStream.close();
+
+			Arrays.sort(latencies);
+			System.out.printf("%-22s p50: %7d [ns]  p99: %8d [ns]  p99.9: %9d [ns]  max: %10d [ns]\n",
+					strategy.getClass().getSimpleName(),
+					latencies[chunkCount / 2],
+					latencies[(int) (chunkCount * 0.99)],
+					latencies[(int) (chunkCount * 0.999)],
+					latencies[chunkCount - 1]);
+		}
+	}
+
+}
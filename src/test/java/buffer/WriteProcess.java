@@ -16,14 +16,14 @@ public class WriteProcess {
 		final int chuckSize =  1024 * 8;
 		final long chunkCount = 10 * 1024 * 1024;
 
-		// set to -1 to loop forever,
-		// make sure to set a max page value otherwise your disk will fill up
+		// set to -1 to loop forever, the capacity policy keeps the disk from filling up
 		//final long totalDataCount = -1; // chunkCount * chuckSize;
 		final long totalDataCount = chunkCount * chuckSize;
 
 		final Buffer buff = new Buffer();
 		buff.setCacheDir(new File(cachedir));
 		buff.setPageSize(pagesize);
+		buff.setCapacityPolicy(CapacityPolicy.dropOldest(maxPageCount, 0));
 
 		// check if the filesys has enough space left...
 		long needed = pagesize * maxPageCount;
@@ -73,7 +73,7 @@ public class WriteProcess {
 			// print stats for the reading side:
 			if ((outgoingCount.get() % 10_000) == 0) {
 				double mByte = outgoingAmount.get() / (double)(1024 * 1024);
-				double mBps = mByte / (double) ((System.currentTimeMillis() - start) / 1000d);
+				double mBps = mByte / ((System.currentTimeMillis() - start) / 1000d);
 				System.out.printf("Write Speed: %.2f [MByte/sec] "
 						+ "time: %d bytes: %d buffers: %d\n", mBps, System.currentTimeMillis(), outgoingAmount.get(), outgoingCount.get());
 			}